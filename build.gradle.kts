@@ -4,6 +4,7 @@ plugins {
     java
     application
     id("net.ltgt.errorprone") version "0.8.1"
+    id("me.champeau.gradle.jmh") version "0.5.0"
 }
 
 java {
@@ -63,4 +64,18 @@ tasks.withType<JavaCompile> {
 // Error prone options
 tasks.named<JavaCompile>("compileTestJava") {
     options.errorprone.isEnabled.set(false)
+}
+
+// Benchmarks: ./gradlew jmh
+jmh {
+    jmhVersion = "1.23"
+    jvmArgs = listOf("-Xmx128m")
+    // ./gradlew jmh -Pjmh.include=GetBenchmark
+    (project.findProperty("jmh.include") as String?)?.let { include = listOf(it) }
+}
+
+tasks.named<JavaCompile>("compileJmhJava") {
+    options.errorprone.isEnabled.set(false)
+    // JMH generates code that does not pass -Xlint:all
+    options.compilerArgs.remove("-Werror")
 }
\ No newline at end of file
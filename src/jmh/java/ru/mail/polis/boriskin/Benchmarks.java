@@ -0,0 +1,95 @@
+package ru.mail.polis.boriskin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Общие для бенчмарков ключи, значения и работа с папкой данных.
+ */
+final class Benchmarks {
+    // столько же, сколько у DAOFactory при -Xmx128m
+    static final long FLUSH_THRESHOLD = 128L * 1024 * 1024 / 60;
+
+    private Benchmarks() {
+        // do nothing
+    }
+
+    /**
+     * Ключ заданной длины: нули, а в конце номер,
+     * так что ключи с большим номером больше и в порядке байт.
+     */
+    static ByteBuffer key(final int i, final int keySize) {
+        assert keySize >= Integer.BYTES;
+        final ByteBuffer key = ByteBuffer.allocate(keySize);
+        key.putInt(keySize - Integer.BYTES, i);
+        return key;
+    }
+
+    // ключ длиннее всех записанных -- такого ключа в таблицах нет
+    static ByteBuffer absentKey(final int i, final int keySize) {
+        final ByteBuffer key = ByteBuffer.allocate(keySize + 1);
+        key.putInt(keySize - Integer.BYTES, i);
+        return key;
+    }
+
+    static ByteBuffer value(final int valueSize) {
+        final byte[] value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        return ByteBuffer.wrap(value);
+    }
+
+    static File createDirectory(final String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * DAO без фонового compaction'а: число SSTable'ов остается таким, каким его сделал бенчмарк.
+     */
+    static NewDAO openWithoutCompaction(final File data, final long flushThreshold) throws IOException {
+        return new NewDAO(data, DBOptions.defaults()
+                .withMemTableSize(flushThreshold)
+                .withMaxFlushQueueSize(2)
+                .withSyncPolicy(SyncPolicy.none())
+                .withCompactionStrategy(ssTables -> null));
+    }
+
+    /**
+     * Записывает tables SSTable'ов по keysPerTable ключей в каждой.
+     *
+     * @param interleaved пересекаются ли таблицы по ключам (ключи раскладываются по таблицам по кругу)
+     *                    или каждая таблица занимает свой диапазон
+     */
+    static void fill(final File data,
+                     final int tables,
+                     final int keysPerTable,
+                     final int keySize,
+                     final int valueSize,
+                     final boolean interleaved) throws IOException {
+        final ByteBuffer value = value(valueSize);
+        for (int table = 0; table < tables; table++) {
+            // каждая сессия -- отдельная SSTable
+            try (NewDAO session = openWithoutCompaction(data, Long.MAX_VALUE)) {
+                for (int i = 0; i < keysPerTable; i++) {
+                    final int key = interleaved ? i * tables + table : table * keysPerTable + i;
+                    session.upsert(key(key, keySize), value);
+                }
+            }
+        }
+    }
+
+    static void delete(final File data) throws IOException {
+        try (Stream<Path> files = Files.walk(data.toPath())) {
+            final Iterator<Path> iterator = files.sorted(Comparator.reverseOrder()).iterator();
+            while (iterator.hasNext()) {
+                Files.delete(iterator.next());
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ru.mail.polis.boriskin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полный {@link NewDAO#compact()} нескольких пересекающихся по ключам SSTable'ов.
+ * Таблицы заново создаются перед каждым замером.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompactBenchmark {
+    private static final int KEYS = 200_000;
+
+    @Param({"8"})
+    private int tables;
+
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    private File data;
+    private NewDAO dao;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        data = Benchmarks.createDirectory("compact-benchmark");
+        Benchmarks.fill(data, tables, KEYS / tables, keySize, valueSize, true);
+        dao = Benchmarks.openWithoutCompaction(data, Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        dao.compact();
+    }
+}
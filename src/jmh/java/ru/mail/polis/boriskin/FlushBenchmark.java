@@ -0,0 +1,98 @@
+package ru.mail.polis.boriskin;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сброс заполненного MemTable'а в SSTable -- то же, что делает поток сброса {@link NewDAO}.
+ * {@link #throughput} дополнительно показывает, сколько байт в секунду пишется на диск.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlushBenchmark {
+    // байт ключей и значений в MemTable'е
+    private static final int MEM_TABLE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    @Param({"false", "true"})
+    private boolean offHeap;
+
+    private File data;
+    private MutableTable memTable;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.createDirectory("flush-benchmark");
+        target = new File(data, "flushed.db");
+        memTable = offHeap ? new ArenaMemTable(new SlabPool(0L)) : new MemTable();
+        final ByteBuffer value = Benchmarks.value(valueSize);
+        final int records = MEM_TABLE_SIZE / (keySize + valueSize);
+        for (int i = 0; i < records; i++) {
+            memTable.upsert(Benchmarks.key(i, keySize), value);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTable() throws IOException {
+        Files.deleteIfExists(target.toPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public long flush() throws IOException {
+        return SortedStringTable.writeData(memTable.cursor(ByteBuffer.allocate(0)), target);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(final Written written) throws IOException {
+        written.bytes += SortedStringTable.writeData(memTable.cursor(ByteBuffer.allocate(0)), target);
+    }
+
+    /**
+     * Счетчик записанных байт: JMH выводит его как bytes в секунду.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Written {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+}
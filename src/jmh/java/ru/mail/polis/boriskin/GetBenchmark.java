@@ -0,0 +1,109 @@
+package ru.mail.polis.boriskin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка точечного get в зависимости от числа SSTable'ов:
+ * быстрый путь {@link NewDAO#get(ByteBuffer)} против мерджа итераторов всех таблиц,
+ * которым get был реализован по умолчанию в {@link ru.mail.polis.DAO}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetBenchmark {
+    private static final int KEYS_PER_TABLE = 10_000;
+
+    @Param({"1", "8", "64"})
+    private int tables;
+
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    private File data;
+    private NewDAO dao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.createDirectory("get-benchmark");
+        // ключи таблиц не пересекаются
+        Benchmarks.fill(data, tables, KEYS_PER_TABLE, keySize, valueSize, false);
+        dao = Benchmarks.openWithoutCompaction(data, Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public ByteBuffer getHit() throws IOException {
+        return dao.get(existingKey());
+    }
+
+    @Benchmark
+    public Object getMiss() throws IOException {
+        try {
+            return dao.get(absentKey());
+        } catch (NoSuchElementException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer mergeGetHit() throws IOException {
+        return mergeGet(existingKey());
+    }
+
+    @Benchmark
+    public ByteBuffer mergeGetMiss() throws IOException {
+        return mergeGet(absentKey());
+    }
+
+    // то же, что DAO.get по умолчанию
+    private ByteBuffer mergeGet(final ByteBuffer key) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(key);
+        if (iterator.hasNext()) {
+            final Record next = iterator.next();
+            if (next.getKey().equals(key)) {
+                return next.getValue();
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer existingKey() {
+        return Benchmarks.key(ThreadLocalRandom.current().nextInt(tables * KEYS_PER_TABLE), keySize);
+    }
+
+    private ByteBuffer absentKey() {
+        return Benchmarks.absentKey(ThreadLocalRandom.current().nextInt(tables * KEYS_PER_TABLE), keySize);
+    }
+}
@@ -0,0 +1,89 @@
+package ru.mail.polis.boriskin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сканирование диапазона заданной длины через {@link ru.mail.polis.DAO#range}
+ * и в обратном порядке через {@link NewDAO#descendingRange}
+ * поверх одной или нескольких пересекающихся по ключам SSTable'ов.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RangeBenchmark {
+    private static final int KEYS = 100_000;
+
+    @Param({"1", "8"})
+    private int tables;
+
+    @Param({"10", "100", "1000"})
+    private int length;
+
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    private File data;
+    private NewDAO dao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.createDirectory("range-benchmark");
+        // соседние ключи лежат в разных таблицах, так что сканирование мерджит их все
+        Benchmarks.fill(data, tables, KEYS / tables, keySize, valueSize, true);
+        dao = Benchmarks.openWithoutCompaction(data, Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public void range(final Blackhole blackhole) throws IOException {
+        final int from = ThreadLocalRandom.current().nextInt(KEYS - length);
+        final Iterator<Record> iterator = dao.range(
+                Benchmarks.key(from, keySize),
+                Benchmarks.key(from + length, keySize));
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+
+    @Benchmark
+    public void descendingRange(final Blackhole blackhole) throws IOException {
+        final int from = ThreadLocalRandom.current().nextInt(KEYS - length);
+        final Iterator<Record> iterator = dao.descendingRange(
+                Benchmarks.key(from, keySize),
+                Benchmarks.key(from + length, keySize));
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ru.mail.polis.boriskin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полное сканирование через {@link ru.mail.polis.DAO#iterator} -- время на одну запись.
+ * Таблицы пересекаются по ключам, а в каждой второй сессии часть ключей перезаписывается
+ * или удаляется, так что мердж выбрасывает устаревшие версии и могилки.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    private static final int KEYS = 100_000;
+
+    @Param({"1", "8"})
+    private int tables;
+
+    @Param({"16"})
+    private int keySize;
+
+    @Param({"64"})
+    private int valueSize;
+
+    private File data;
+    private NewDAO dao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.createDirectory("scan-benchmark");
+        Benchmarks.fill(data, tables, KEYS / tables, keySize, valueSize, true);
+        // еще одна сессия: каждый десятый ключ перезаписан, каждый десятый удален
+        try (NewDAO session = Benchmarks.openWithoutCompaction(data, Long.MAX_VALUE)) {
+            final ByteBuffer value = Benchmarks.value(valueSize);
+            for (int i = 0; i < KEYS; i += 10) {
+                session.upsert(Benchmarks.key(i, keySize), value);
+                session.remove(Benchmarks.key(i + 5, keySize));
+            }
+        }
+        dao = Benchmarks.openWithoutCompaction(data, Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void scan(final Blackhole blackhole) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
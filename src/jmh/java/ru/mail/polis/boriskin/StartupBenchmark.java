@@ -0,0 +1,101 @@
+package ru.mail.polis.boriskin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время открытия {@link NewDAO} над множеством SSTable'ов:
+ * по манифесту, без чтения таблиц, и без него -- с поиском таблиц в папке и открытием каждой.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+    private static final int KEYS_PER_TABLE = 16;
+    private static final int KEY_SIZE = 16;
+    private static final int VALUE_SIZE = 64;
+
+    @Param({"1000", "10000"})
+    private int tables;
+
+    @Param({"true", "false"})
+    private boolean manifest;
+
+    private File data;
+    private NewDAO dao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Benchmarks.createDirectory("startup-benchmark");
+        // таблицы пишутся напрямую: через DAO каждая стоила бы сброса MemTable'а
+        final ByteBuffer value = Benchmarks.value(VALUE_SIZE);
+        for (int table = 0; table < tables; table++) {
+            final List<Record> records = new ArrayList<>(KEYS_PER_TABLE);
+            for (int i = 0; i < KEYS_PER_TABLE; i++) {
+                records.add(Record.of(Benchmarks.key(table * KEYS_PER_TABLE + i, KEY_SIZE), value));
+            }
+            SortedStringTable.writeData(Cursors.sortedRecords(records.iterator(), Utils.getTime()),
+                    new File(data, "SortedStringTABLE" + table + ".db"), 0, TableOptions.defaults());
+        }
+        // первое открытие записывает манифест
+        open().close();
+    }
+
+    @Setup(Level.Iteration)
+    public void removeManifest() throws IOException {
+        if (!manifest) {
+            Files.deleteIfExists(new File(data, "MANIFEST").toPath());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeDao() throws IOException {
+        dao.close();
+        // отображения таблиц закрытого DAO освобождает только сборщик мусора,
+        // а их число у процесса ограничено
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public NewDAO open() throws IOException {
+        dao = new NewDAO(data, DBOptions.defaults()
+                .withSyncPolicy(SyncPolicy.none())
+                .withCompactionStrategy(ssTables -> null)
+                .withMaxTableCount(Integer.MAX_VALUE));
+        return dao;
+    }
+
+    // первое чтение открывает таблицы, которые манифест позволил не открывать при старте
+    @Benchmark
+    public ByteBuffer openAndGet() throws IOException {
+        return open().get(Benchmarks.key(tables / 2 * KEYS_PER_TABLE, KEY_SIZE));
+    }
+}
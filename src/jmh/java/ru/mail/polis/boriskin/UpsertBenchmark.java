@@ -0,0 +1,94 @@
+package ru.mail.polis.boriskin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность upsert'а с последовательными и случайными ключами,
+ * включая запись в лог, сброс заполненных MemTable'ов и фоновый compaction,
+ * с MemTable'ом в куче и вне ее (с -prof gc видно, сколько мусора остается на каждую запись).
+ * {@link #batch} пишет те же случайные ключи пакетами по {@value #BATCH_SIZE}.
+ * Каждая итерация начинается с пустой папки.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpsertBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"64", "1024"})
+    private int valueSize;
+
+    @Param({"false", "true"})
+    private boolean offHeap;
+
+    private File data;
+    private NewDAO dao;
+    private ByteBuffer value;
+    private int next;
+    private final WriteBatch writeBatch = new WriteBatch();
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        data = Benchmarks.createDirectory("upsert-benchmark");
+        dao = new NewDAO(data, DBOptions.defaults()
+                .withMemTableSize(Benchmarks.FLUSH_THRESHOLD)
+                .withMaxFlushQueueSize(2)
+                .withSyncPolicy(SyncPolicy.periodic(100L))
+                .withTableOptions(TableOptions.defaults().withOffHeapMemTable(offHeap)));
+        // MemTable в куче хранит ссылку на значение, так что одно и то же значение можно писать много раз
+        value = Benchmarks.value(valueSize);
+        next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.delete(data);
+    }
+
+    @Benchmark
+    public void sequential() throws IOException {
+        dao.upsert(Benchmarks.key(next++, keySize), value);
+    }
+
+    @Benchmark
+    public void random() throws IOException {
+        dao.upsert(Benchmarks.key(ThreadLocalRandom.current().nextInt(), keySize), value);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void batch() throws IOException {
+        writeBatch.clear();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            writeBatch.upsert(Benchmarks.key(ThreadLocalRandom.current().nextInt(), keySize), value);
+        }
+        dao.write(writeBatch);
+    }
+}
@@ -96,6 +96,26 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies all changes of the batch.
+     * The default implementation applies them one by one, so it is not atomic.
+     */
+    default void write(@NotNull final WriteBatch batch) throws IOException {
+        batch.forEach(new WriteBatch.Handler() {
+            @Override
+            public void upsert(
+                    @NotNull final ByteBuffer key,
+                    @NotNull final ByteBuffer value) throws IOException {
+                DAO.this.upsert(key, value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) throws IOException {
+                DAO.this.remove(key);
+            }
+        });
+    }
+
     /**
      * Perform compaction
      */
@@ -17,7 +17,9 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.boriskin.DBOptions;
 import ru.mail.polis.boriskin.NewDAO;
+import ru.mail.polis.boriskin.TableOptions;
 
 import java.io.File;
 import java.io.IOException;
@@ -54,6 +56,9 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new NewDAO(data, MAX_HEAP / 60);
+        // MemTables live off-heap: three of them take at most a quarter of the default -XX:MaxDirectMemorySize
+        return new NewDAO(data, DBOptions.defaults()
+                .withAdaptiveMemTableSize(MAX_HEAP / 60, MAX_HEAP / 16)
+                .withTableOptions(TableOptions.defaults().withOffHeapMemTable(true)));
     }
 }
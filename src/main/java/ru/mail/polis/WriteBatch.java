@@ -0,0 +1,81 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Group of upserts and removes applied by {@link DAO#write(WriteBatch)}.
+ * Changes are applied in the order they were added, so the last change of a key wins.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // null stands for a removed key
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Receives the changes of a batch in order.
+     */
+    public interface Handler {
+        void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
+
+        void remove(@NotNull ByteBuffer key) throws IOException;
+    }
+
+    /**
+     * Adds an upsert. The buffers are not copied and must not change until the batch is written.
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        return add(key, value.duplicate());
+    }
+
+    /**
+     * Adds a removal. The buffer is not copied and must not change until the batch is written.
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        return add(key, null);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public void clear() {
+        keys.clear();
+        values.clear();
+    }
+
+    /**
+     * Passes the changes to the handler in the order they were added.
+     */
+    public void forEach(@NotNull final Handler handler) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = values.get(i);
+            if (value == null) {
+                handler.remove(keys.get(i).duplicate());
+            } else {
+                handler.upsert(keys.get(i).duplicate(), value.duplicate());
+            }
+        }
+    }
+
+    private WriteBatch add(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value) {
+        keys.add(key.duplicate());
+        values.add(value);
+        return this;
+    }
+}
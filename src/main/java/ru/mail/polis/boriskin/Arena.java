@@ -0,0 +1,153 @@
+package ru.mail.polis.boriskin;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Память вне кучи, которая выдается кусками подряд из больших slab'ов и освобождается только целиком:
+ * {@link #free()} возвращает все slab'ы в {@link SlabPool}, из которого их берут следующие арены.
+ * Адрес куска -- [номер slab'а + 1 (старшие 32 бита)][смещение в slab'е (младшие 32 бита)],
+ * так что 0 никогда не бывает адресом и служит пустой ссылкой.
+ * Куски выровнены по 8 байт, поэтому long'и в них можно менять атомарно.
+ */
+final class Arena {
+    static final long NULL = 0L;
+
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int ALIGNMENT = Long.BYTES;
+    // long'и с атомарным доступом: указатели, которые читаются без блокировок
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final SlabPool pool;
+    // запись в массив и в slab'ы публикуется читателям атомарной записью указателя на кусок
+    private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+    // копии slab'ов со своим position для копирования под lock'ом, чтобы не создавать их на каждую запись
+    private ByteBuffer[] writers = new ByteBuffer[16];
+    private int slabCount;
+    // текущий slab, из которого выдаются небольшие куски
+    private int current = -1;
+    private int position;
+    private volatile long used;
+
+    Arena(@NotNull final SlabPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Выделяет кусок памяти и копирует в его конец переданные байты;
+     * заголовок куска заполняет вызывающий.
+     * Кусок больше четверти slab'а получает собственный slab, чтобы не оставлять в текущем пустой хвост.
+     *
+     * @param header сколько байт нужно под заголовок
+     * @param tail байты после заголовка (position не сдвигается)
+     * @return адрес куска
+     */
+    synchronized long allocate(final int header, @NotNull final ByteBuffer tail) {
+        final int aligned = (header + tail.remaining() + ALIGNMENT - 1) & -ALIGNMENT;
+        used += aligned;
+        final int slab;
+        final int offset;
+        if (aligned > SLAB_SIZE / 4) {
+            slab = addSlab(aligned);
+            offset = 0;
+        } else {
+            if (current < 0 || position + aligned > SLAB_SIZE) {
+                current = addSlab(SLAB_SIZE);
+                position = 0;
+            }
+            slab = current;
+            offset = position;
+            position += aligned;
+        }
+        final ByteBuffer writer = writers[slab];
+        writer.position(offset + header);
+        Bytes.put(writer, tail);
+        return address(slab, offset);
+    }
+
+    // сколько байт выдано
+    long getSize() {
+        return used;
+    }
+
+    /**
+     * Отдает все slab'ы в пул: ни один адрес арены больше не действителен,
+     * и выданные из нее представления тоже нельзя читать.
+     */
+    synchronized void free() {
+        for (int i = 0; i < slabCount; i++) {
+            pool.give(slabs[i]);
+        }
+        // обращение к освобожденной арене падает, а не читает чужие данные
+        slabs = new ByteBuffer[0];
+        writers = new ByteBuffer[0];
+        slabCount = 0;
+        current = -1;
+    }
+
+    // slab, в котором лежит кусок; смещение куска в нем -- offset(address)
+    @NotNull
+    ByteBuffer slab(final long address) {
+        return slabs[(int) (address >>> Integer.SIZE) - 1];
+    }
+
+    /**
+     * Сколько памяти вне кучи JVM выделит под все буферы: -XX:MaxDirectMemorySize,
+     * а если он не задан -- столько же, сколько может занять куча (-Xmx).
+     */
+    static long maxDirectMemory() {
+        final HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        if (bean == null) {
+            return Runtime.getRuntime().maxMemory();
+        }
+        try {
+            final long max = Long.parseLong(bean.getVMOption("MaxDirectMemorySize").getValue());
+            return max > 0 ? max : Runtime.getRuntime().maxMemory();
+        } catch (IllegalArgumentException ex) {
+            // у JVM нет такого параметра
+            return Runtime.getRuntime().maxMemory();
+        }
+    }
+
+    static int offset(final long address) {
+        return (int) address;
+    }
+
+    static int slabIndex(final long address) {
+        return (int) (address >>> Integer.SIZE) - 1;
+    }
+
+    long getLongVolatile(final long address) {
+        return (long) LONGS.getVolatile(slab(address), offset(address));
+    }
+
+    void setLongVolatile(final long address, final long value) {
+        LONGS.setVolatile(slab(address), offset(address), value);
+    }
+
+    boolean compareAndSetLong(final long address, final long expected, final long value) {
+        return LONGS.compareAndSet(slab(address), offset(address), expected, value);
+    }
+
+    private int addSlab(final int size) {
+        final ByteBuffer slab = pool.take(size);
+        if (slabCount == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabs.length * 2);
+            writers = Arrays.copyOf(writers, writers.length * 2);
+        }
+        slabs[slabCount] = slab;
+        writers[slabCount] = slab.duplicate();
+        return slabCount++;
+    }
+
+    private static long address(final int slab, final int offset) {
+        return (long) (slab + 1) << Integer.SIZE | offset;
+    }
+}
@@ -0,0 +1,415 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MemTable вне кучи: ключи и значения копируются в {@link Arena},
+ * а упорядочивает их skip list, узлы которого лежат там же и ссылаются друг на друга адресами.
+ * В куче не остается ни объектов на запись, ни ссылок на буферы пользователя,
+ * а размер таблицы -- это реально занятая ею память.
+ *
+ * <p>Узел -- [адрес значения (long)][длина ключа (int)][высота (int)][адреса следующих узлов (long) по уровням][ключ],
+ * значение -- [версия (long)][длина (int), у могилки -1][байты значения].
+ * Пишущие потоки вставляют узлы одновременно: узел связывается с соседями CAS'ом снизу вверх,
+ * а более свежее значение подменяет прежнее тоже CAS'ом. Читатели не берут никаких блокировок.
+ * Память не освобождается по частям: сброшенная на диск таблица отдает все slab'ы арены в {@link SlabPool} разом,
+ * когда отпущена последняя ссылка на нее (см. {@link #tryRetain()}).
+ * Поэтому пользователю значения отдаются копиями в куче, а не представлениями арены.
+ */
+final class ArenaMemTable implements MutableTable {
+    private static final int MAX_HEIGHT = 12;
+
+    private static final int VALUE = 0;
+    private static final int KEY_LENGTH = VALUE + Long.BYTES;
+    private static final int HEIGHT = KEY_LENGTH + Integer.BYTES;
+    private static final int NEXT = HEIGHT + Integer.BYTES;
+
+    private static final int TIMESTAMP = 0;
+    private static final int DATA_LENGTH = TIMESTAMP + Long.BYTES;
+    private static final int DATA = DATA_LENGTH + Integer.BYTES;
+    private static final int TOMBSTONE = -1;
+
+    // соседи вставляемого узла по уровням: [0, MAX_HEIGHT) -- предшественники, дальше -- следующие за ними
+    private static final ThreadLocal<long[]> SPLICE = ThreadLocal.withInitial(() -> new long[2 * MAX_HEIGHT]);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Arena arena;
+    // ссылки набора таблиц и читателей; на нуле арена уже освобождена
+    private final AtomicInteger refs = new AtomicInteger(1);
+    // узел без ключа на всех уровнях, с которого начинается любой поиск
+    private final long head;
+    private final long headSize;
+
+    ArenaMemTable(@NotNull final SlabPool pool) {
+        this.arena = new Arena(pool);
+        this.head = newNode(EMPTY, Arena.NULL, MAX_HEIGHT);
+        this.headSize = arena.getSize();
+    }
+
+    @Override
+    public long getSize() {
+        return arena.getSize() - headSize;
+    }
+
+    @NotNull
+    @Override
+    public Cursor cursor(@NotNull final ByteBuffer from,
+                         @Nullable final ByteBuffer to,
+                         final boolean descending) {
+        final NodeCursor cursor = new NodeCursor(from, to, descending);
+        if (descending) {
+            cursor.seekBefore(to);
+        } else {
+            cursor.seek(from);
+        }
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        final long node = findGreaterOrEqual(key, null);
+        if (node == Arena.NULL || compare(node, key) != 0) {
+            return null;
+        }
+        final long value = arena.getLongVolatile(node + VALUE);
+        final ByteBuffer slab = arena.slab(value);
+        final int offset = Arena.offset(value);
+        final int length = slab.getInt(offset + DATA_LENGTH);
+        if (length == TOMBSTONE) {
+            return new Value(slab.getLong(offset + TIMESTAMP), null);
+        }
+        return new Value(slab.getLong(offset + TIMESTAMP), copy(slab, offset + DATA, length));
+    }
+
+    @Override
+    public boolean tryRetain() {
+        while (true) {
+            final int count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        final int count = refs.decrementAndGet();
+        assert count >= 0;
+        if (count == 0) {
+            arena.free();
+        }
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer val) {
+        put(key, Value.valueOf(val));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) {
+        put(key, Value.tombstone());
+    }
+
+    @Override
+    public void put(@NotNull final ByteBuffer key, @NotNull final Value val) {
+        final long value = newValue(val);
+        final long[] splice = SPLICE.get();
+        final long found = findGreaterOrEqual(key, splice);
+        if (found != Arena.NULL && compare(found, key) == 0) {
+            replaceValue(found, value);
+            return;
+        }
+
+        final int height = randomHeight();
+        final long node = newNode(key, value, height);
+        for (int level = 0; level < height; level++) {
+            while (true) {
+                final long succ = splice[MAX_HEIGHT + level];
+                arena.setLongVolatile(next(node, level), succ);
+                if (arena.compareAndSetLong(next(splice[level], level), succ, node)) {
+                    break;
+                }
+                // между соседями успели вставить другой узел: ищем соседей заново, начиная с того же узла
+                findOnLevel(key, level, splice[level], splice);
+                final long next = splice[MAX_HEIGHT];
+                if (level == 0 && next != Arena.NULL && compare(next, key) == 0) {
+                    // тот же ключ вставили одновременно с нами; наш узел так и останется недостижимым
+                    replaceValue(next, value);
+                    return;
+                }
+            }
+        }
+    }
+
+    // более свежее значение подменяет прежнее
+    private void replaceValue(final long node, final long value) {
+        final long timeStamp = arena.slab(value).getLong(Arena.offset(value) + TIMESTAMP);
+        while (true) {
+            final long prev = arena.getLongVolatile(node + VALUE);
+            if (arena.slab(prev).getLong(Arena.offset(prev) + TIMESTAMP) > timeStamp
+                    || arena.compareAndSetLong(node + VALUE, prev, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Первый узел с ключом не меньше key.
+     *
+     * @param splice куда сложить по уровням последние узлы с ключом меньше key
+     *               и следующие за ними; null -- не нужно
+     * @return адрес узла или {@link Arena#NULL}, если все ключи меньше key
+     */
+    private long findGreaterOrEqual(@NotNull final ByteBuffer key, @Nullable final long[] splice) {
+        long node = head;
+        long next = Arena.NULL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = arena.getLongVolatile(next(node, level));
+            while (next != Arena.NULL && compare(next, key) < 0) {
+                node = next;
+                next = arena.getLongVolatile(next(node, level));
+            }
+            if (splice != null) {
+                splice[level] = node;
+                splice[MAX_HEIGHT + level] = next;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Последний узел с ключом меньше key: обратных ссылок в skip list'е нет,
+     * поэтому каждый шаг назад -- такой же спуск по уровням, как и поиск.
+     *
+     * @param key граница; null -- последний узел таблицы
+     * @return адрес узла или {@link Arena#NULL}, если все ключи не меньше key
+     */
+    private long findLessThan(@Nullable final ByteBuffer key) {
+        long node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = arena.getLongVolatile(next(node, level));
+            while (next != Arena.NULL && (key == null || compare(next, key) < 0)) {
+                node = next;
+                next = arena.getLongVolatile(next(node, level));
+            }
+        }
+        return node == head ? Arena.NULL : node;
+    }
+
+    private void findOnLevel(@NotNull final ByteBuffer key,
+                             final int level,
+                             final long from,
+                             @NotNull final long[] splice) {
+        long node = from;
+        long next = arena.getLongVolatile(next(node, level));
+        while (next != Arena.NULL && compare(next, key) < 0) {
+            node = next;
+            next = arena.getLongVolatile(next(node, level));
+        }
+        splice[level] = node;
+        splice[MAX_HEIGHT + level] = next;
+    }
+
+    // ключ узла сравнивается прямо в арене
+    private int compare(final long node, @NotNull final ByteBuffer key) {
+        final ByteBuffer slab = arena.slab(node);
+        final int offset = Arena.offset(node);
+        final int keyLength = slab.getInt(offset + KEY_LENGTH);
+        final int height = slab.getInt(offset + HEIGHT);
+        return Bytes.compare(slab, offset + NEXT + height * Long.BYTES, keyLength, key);
+    }
+
+    private static long next(final long node, final int level) {
+        return node + NEXT + (long) level * Long.BYTES;
+    }
+
+    // значение в куче: slab после освобождения таблицы достанется другой арене
+    private static ByteBuffer copy(@NotNull final ByteBuffer slab, final int offset, final int length) {
+        final ByteBuffer data = slab.duplicate();
+        data.position(offset);
+        data.limit(offset + length);
+        final ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(data);
+        return copy.flip();
+    }
+
+    // узел публикуется только CAS'ом, так что заголовок можно заполнить обычной записью;
+    // slab из пула не обнулен, поэтому указатели на следующие узлы тоже
+    private long newNode(@NotNull final ByteBuffer key, final long value, final int height) {
+        final long node = arena.allocate(NEXT + height * Long.BYTES, key);
+        final ByteBuffer slab = arena.slab(node);
+        final int offset = Arena.offset(node);
+        arena.setLongVolatile(node + VALUE, value);
+        slab.putInt(offset + KEY_LENGTH, key.remaining());
+        slab.putInt(offset + HEIGHT, height);
+        for (int level = 0; level < height; level++) {
+            slab.putLong(offset + NEXT + level * Long.BYTES, Arena.NULL);
+        }
+        return node;
+    }
+
+    private long newValue(@NotNull final Value val) {
+        final ByteBuffer data = val.data();
+        final long value = arena.allocate(DATA, data == null ? EMPTY : data);
+        final ByteBuffer slab = arena.slab(value);
+        final int offset = Arena.offset(value);
+        slab.putLong(offset + TIMESTAMP, val.getTimeStamp());
+        slab.putInt(offset + DATA_LENGTH, data == null ? TOMBSTONE : data.remaining());
+        return value;
+    }
+
+    // высота узла: каждый следующий уровень с вероятностью 1/4
+    private static int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && ThreadLocalRandom.current().nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Курсор по нижнему уровню skip list'а.
+     * Представления ключа и значения -- по одному буферу на slab, которые только переставляются.
+     */
+    private final class NodeCursor implements Cursor {
+        private final ByteBuffer from;
+        @Nullable
+        private final ByteBuffer to;
+        private final boolean descending;
+        private ByteBuffer[] keyViews = new ByteBuffer[4];
+        private ByteBuffer[] valueViews = new ByteBuffer[4];
+        private long node;
+
+        private ByteBuffer keyView;
+        private ByteBuffer valueView;
+        private long timeStamp;
+        private boolean tombstone;
+
+        NodeCursor(@NotNull final ByteBuffer from,
+                   @Nullable final ByteBuffer to,
+                   final boolean descending) {
+            this.from = from;
+            this.to = to;
+            this.descending = descending;
+        }
+
+        @Override
+        public void seek(@NotNull final ByteBuffer point) {
+            if (descending) {
+                seekBefore(to == null || point.compareTo(to) < 0 ? point : to);
+                return;
+            }
+            node = findGreaterOrEqual(point.compareTo(from) < 0 ? from : point, null);
+            read();
+        }
+
+        // на последний узел с ключом меньше bound; null -- на последний узел таблицы
+        void seekBefore(@Nullable final ByteBuffer bound) {
+            node = findLessThan(bound);
+            read();
+        }
+
+        @Override
+        public boolean isValid() {
+            return node != Arena.NULL;
+        }
+
+        @Override
+        public void next() {
+            node = descending
+                    ? findLessThan(keyView)
+                    : arena.getLongVolatile(ArenaMemTable.next(node, 0));
+            read();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer keyView() {
+            return keyView;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer valueView() {
+            assert !tombstone;
+            return valueView;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer value() {
+            assert !tombstone;
+            return copy(valueView, valueView.position(), valueView.remaining());
+        }
+
+        @Override
+        public long timestamp() {
+            return timeStamp;
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return tombstone;
+        }
+
+        private void read() {
+            // ключи идут по порядку, так что за границей диапазона дальше ничего нет
+            if (node != Arena.NULL && outOfRange(node)) {
+                node = Arena.NULL;
+            }
+            if (node == Arena.NULL) {
+                return;
+            }
+            final ByteBuffer slab = arena.slab(node);
+            final int offset = Arena.offset(node);
+            final int keyOffset = offset + NEXT + slab.getInt(offset + HEIGHT) * Long.BYTES;
+            keyViews = withView(keyViews, node);
+            keyView = place(keyViews[Arena.slabIndex(node)], keyOffset, slab.getInt(offset + KEY_LENGTH));
+
+            final long value = arena.getLongVolatile(node + VALUE);
+            final ByteBuffer valueSlab = arena.slab(value);
+            final int valueOffset = Arena.offset(value);
+            timeStamp = valueSlab.getLong(valueOffset + TIMESTAMP);
+            final int length = valueSlab.getInt(valueOffset + DATA_LENGTH);
+            tombstone = length == TOMBSTONE;
+            if (!tombstone) {
+                valueViews = withView(valueViews, value);
+                valueView = place(valueViews[Arena.slabIndex(value)], valueOffset + DATA, length);
+            }
+        }
+
+        private boolean outOfRange(final long address) {
+            return descending ? compare(address, from) < 0 : to != null && compare(address, to) >= 0;
+        }
+
+        // массив представлений, в котором есть буфер slab'а с адресом address
+        private ByteBuffer[] withView(@NotNull final ByteBuffer[] views, final long address) {
+            final int slab = Arena.slabIndex(address);
+            final ByteBuffer[] result = slab < views.length
+                    ? views
+                    : Arrays.copyOf(views, Math.max(views.length * 2, slab + 1));
+            if (result[slab] == null) {
+                result[slab] = arena.slab(address).duplicate();
+            }
+            return result;
+        }
+
+        private ByteBuffer place(@NotNull final ByteBuffer view, final int offset, final int length) {
+            view.clear();
+            view.position(offset);
+            view.limit(offset + length);
+            return view;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Блок отсортированных ячеек SSTable'а.
+ * Ячейки таблиц версии 0 лежат как есть ({@link DenseBlock}),
+ * в версии 3 ключи сжаты относительно предыдущего ключа ({@link PrefixBlock}).
+ */
+interface Block {
+
+    int getRows();
+
+    // курсор, стоящий на первом ключе не меньше point
+    @NotNull
+    Cursor cursor(@NotNull ByteBuffer point);
+
+    // курсор в порядке убывания, стоящий на последнем ключе меньше to; null -- на последнем ключе блока
+    @NotNull
+    Cursor descendingCursor(@Nullable ByteBuffer to);
+
+    /**
+     * Точечный поиск внутри блока.
+     *
+     * @param key искомый ключ
+     * @return значение по этому ключу (возможно, могилка) или null, если ключа в блоке нет
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key);
+
+    @NotNull
+    ByteBuffer firstKey();
+
+    @NotNull
+    ByteBuffer lastKey();
+}
@@ -0,0 +1,131 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Общий для всех SSTable'ов одного {@link NewDAO} кэш прочитанных блоков
+ * по ключу (поколение таблицы, смещение блока) с ограничением по суммарному размеру блоков.
+ * Попадание в кэш обходится без распаковки и разбора блока.
+ *
+ * <p>Вытеснение -- CLOCK: при попадании у блока ставится бит обращения,
+ * а стрелка обходит блоки в порядке добавления, снимая бит,
+ * и вытесняет первый блок без бита. Новый блок добавляется без бита,
+ * так что однократно прочитанные при сканировании блоки вытесняются первыми.
+ */
+public final class BlockCache {
+    private final long capacity;
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Queue<Entry> clock = new ArrayDeque<>();
+    // guarded by this
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Кэш блоков.
+     *
+     * @param capacity сколько байт блоков можно держать в кэше; 0 -- не кэшировать
+     */
+    public BlockCache(final long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Размер кэша не может быть отрицательным: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    static long key(final int generation, final long offset) {
+        assert generation >= 0 && offset >= 0 && offset < 1L << 40;
+        return (long) generation << 40 | offset;
+    }
+
+    @Nullable
+    Block get(final long key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.referenced = true;
+        return entry.block;
+    }
+
+    void put(final long key, @NotNull final Block block, final int weight) {
+        if (weight > capacity) {
+            return;
+        }
+        final Entry entry = new Entry(key, block, weight);
+        // блок мог успеть прочитать и положить соседний поток
+        if (entries.putIfAbsent(key, entry) != null) {
+            return;
+        }
+
+        synchronized (this) {
+            clock.add(entry);
+            size += weight;
+            while (size > capacity) {
+                final Entry candidate = clock.remove();
+                if (candidate.referenced) {
+                    // второй шанс
+                    candidate.referenced = false;
+                    clock.add(candidate);
+                } else {
+                    entries.remove(candidate.key);
+                    size -= candidate.weight;
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions()
+                + ", " + getSize() + " of " + capacity + " bytes";
+    }
+
+    private static final class Entry {
+        final long key;
+        final Block block;
+        final int weight;
+        // бит обращения; гонки не страшны: в худшем случае блок получит лишний шанс или лишится его
+        volatile boolean referenced;
+
+        Entry(final long key, @NotNull final Block block, final int weight) {
+            this.key = key;
+            this.block = block;
+            this.weight = weight;
+        }
+    }
+}
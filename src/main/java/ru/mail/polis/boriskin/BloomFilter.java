@@ -0,0 +1,83 @@
+package ru.mail.polis.boriskin;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter по ключам одной SSTable.
+ * Биты лежат прямо в файле таблицы и читаются через отображенный в память буфер.
+ * Индексы битов получаются двойным хешированием (Kirsch-Mitzenmacher)
+ * из одного 64-битного хеша ключа.
+ */
+final class BloomFilter {
+    // 10 бит на ключ и 7 хеш-функций дают около 1% ложных срабатываний
+    static final int BITS_PER_KEY = 10;
+    static final int HASHES = 7;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final LongBuffer bits;
+    private final long bitCount;
+    private final int hashes;
+
+    BloomFilter(@NotNull final LongBuffer bits, final int hashes) {
+        assert bits.remaining() > 0 && hashes > 0;
+        this.bits = bits;
+        this.bitCount = (long) bits.remaining() * Long.SIZE;
+        this.hashes = hashes;
+    }
+
+    static long hash(@NotNull final ByteBuffer key) {
+        return HASH.hashBytes(key.duplicate()).asLong();
+    }
+
+    // хеш ключа при точечном поиске считается один раз на все таблицы
+    boolean mightContain(final long hash) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = index(h1, h2, i, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Строит фильтр по хешам всех ключей таблицы.
+     *
+     * @param keyHashes хеши ключей, посчитанные {@link #hash(ByteBuffer)}
+     * @param count сколько хешей в массиве заполнено
+     * @return слова фильтра, готовые к записи в файл
+     */
+    static ByteBuffer build(@NotNull final long[] keyHashes, final int count) {
+        final int words = (int) Math.max(1L, ((long) count * BITS_PER_KEY + Long.SIZE - 1) / Long.SIZE);
+        final long bitCount = (long) words * Long.SIZE;
+        final long[] bits = new long[words];
+        for (int k = 0; k < count; k++) {
+            final int h1 = (int) keyHashes[k];
+            final int h2 = (int) (keyHashes[k] >>> 32);
+            for (int i = 1; i <= HASHES; i++) {
+                final long bit = index(h1, h2, i, bitCount);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        final ByteBuffer result = ByteBuffer.allocate(words * Long.BYTES);
+        result.asLongBuffer().put(bits);
+        return result;
+    }
+
+    private static long index(final int h1, final int h2, final int i, final long bitCount) {
+        int combined = h1 + i * h2;
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % bitCount;
+    }
+}
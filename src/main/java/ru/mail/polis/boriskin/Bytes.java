@@ -7,19 +7,85 @@ final class Bytes {
         // do nothing
     }
 
-    // для доступа к ByteBuffer по переданному int
-    static ByteBuffer fromInt(final int value) {
-        final ByteBuffer res = ByteBuffer.allocate(Integer.BYTES);
-        res.putInt(value);
-        res.rewind();
-        return res;
-    }
-
-    // для доступа к ByteBuffer по переданному long
-    static ByteBuffer fromLong(final long value) {
-        final ByteBuffer res = ByteBuffer.allocate(Long.BYTES);
-        res.putLong(value);
-        res.rewind();
-        return res;
+    /**
+     * Сравнивает ключ, лежащий в буфере по абсолютному смещению, с переданным,
+     * не создавая промежуточных срезов.
+     * Порядок совпадает с {@link ByteBuffer#compareTo(ByteBuffer)}.
+     */
+    static int compare(final ByteBuffer buffer, final int offset, final int length, final ByteBuffer key) {
+        final int keyPosition = key.position();
+        final int keyLength = key.remaining();
+        final int common = Math.min(length, keyLength);
+        for (int i = 0; i < common; i++) {
+            final int cmp = Byte.compare(buffer.get(offset + i), key.get(keyPosition + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, keyLength);
+    }
+
+    // то же для ключа, собранного в массиве
+    static int compare(final byte[] array, final int length, final ByteBuffer key) {
+        final int keyPosition = key.position();
+        final int keyLength = key.remaining();
+        final int common = Math.min(length, keyLength);
+        for (int i = 0; i < common; i++) {
+            final int cmp = Byte.compare(array[i], key.get(keyPosition + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, keyLength);
+    }
+
+    // длина общего префикса ключа в массиве и переданного
+    static int commonPrefix(final byte[] array, final int length, final ByteBuffer key) {
+        final int keyPosition = key.position();
+        final int common = Math.min(length, key.remaining());
+        int i = 0;
+        while (i < common && array[i] == key.get(keyPosition + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // копирует оставшиеся байты src, не сдвигая его position
+    static void put(final ByteBuffer dst, final ByteBuffer src) {
+        if (src.hasArray()) {
+            dst.put(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        } else {
+            dst.put(src.duplicate());
+        }
+    }
+
+    // неотрицательное число по 7 бит в байте, младшие биты вперед (как в LevelDB)
+    static void putVarInt(final ByteBuffer buffer, final int value) {
+        assert value >= 0;
+        int rest = value;
+        while (rest >= 0x80) {
+            buffer.put((byte) (rest | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    static int getVarInt(final ByteBuffer buffer) {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = buffer.get();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    static ByteBuffer min(final ByteBuffer left, final ByteBuffer right) {
+        return left.compareTo(right) <= 0 ? left : right;
+    }
+
+    static ByteBuffer max(final ByteBuffer left, final ByteBuffer right) {
+        return left.compareTo(right) >= 0 ? left : right;
     }
 }
@@ -0,0 +1,41 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.NavigableMap;
+
+/**
+ * Выбирает, какие SSTable'ы сжать в фоне.
+ * Вызывается после каждого сброса MemTable'а и после каждого compaction'а,
+ * пока не вернет null.
+ */
+public interface CompactionStrategy {
+
+    /**
+     * Выбор таблиц для очередного compaction'а.
+     *
+     * @param ssTables текущие SSTable'ы по поколениям
+     * @return задание или null, если сжимать пока нечего
+     */
+    @Nullable
+    CompactionTask pick(@NotNull NavigableMap<Integer, SortedStringTable> ssTables);
+
+    /**
+     * Size-tiered: сжимает вместе таблицы близкого размера,
+     * как только их набирается достаточно.
+     */
+    static CompactionStrategy sizeTiered() {
+        return new SizeTieredCompaction(4, 32);
+    }
+
+    /**
+     * Leveled: на уровнях начиная с первого таблицы не пересекаются по ключам,
+     * а каждый следующий уровень в 10 раз больше предыдущего.
+     *
+     * @param targetFileSize размер, на который режутся результирующие таблицы
+     */
+    static CompactionStrategy leveled(final long targetFileSize) {
+        return new LeveledCompaction(4, targetFileSize);
+    }
+}
@@ -0,0 +1,90 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Что именно сжать: поколения входных SSTable'ов,
+ * уровень, на который лягут результаты, можно ли выбросить могилки
+ * и на таблицы какого размера резать результат.
+ * Могилки, не пережившие grace period ({@link DBOptions#withTombstoneGracePeriod(long)}), остаются в любом случае.
+ */
+public final class CompactionTask {
+    private final Set<Integer> inputs;
+    private final int outputLevel;
+    private final boolean dropTombstones;
+    private final long maxOutputSize;
+    // могилки выбрасываются по одной, если более старых версий ключа нет в других таблицах
+    private final boolean tombstonePurge;
+
+    /**
+     * Задание на compaction.
+     *
+     * @param inputs поколения сжимаемых таблиц
+     * @param outputLevel уровень результирующих таблиц
+     * @param dropTombstones можно ли выбросить могилки:
+     *                       только если более старых версий этих ключей нет ни в одной другой таблице
+     * @param maxOutputSize после скольких байт ключей и значений начинать новую таблицу
+     */
+    public CompactionTask(@NotNull final Collection<Integer> inputs,
+                          final int outputLevel,
+                          final boolean dropTombstones,
+                          final long maxOutputSize) {
+        this(inputs, outputLevel, dropTombstones, maxOutputSize, false);
+    }
+
+    private CompactionTask(@NotNull final Collection<Integer> inputs,
+                           final int outputLevel,
+                           final boolean dropTombstones,
+                           final long maxOutputSize,
+                           final boolean tombstonePurge) {
+        assert !inputs.isEmpty() && outputLevel >= 0 && maxOutputSize > 0;
+        this.inputs = Collections.unmodifiableSet(new TreeSet<>(inputs));
+        this.outputLevel = outputLevel;
+        this.dropTombstones = dropTombstones;
+        this.maxOutputSize = maxOutputSize;
+        this.tombstonePurge = tombstonePurge;
+    }
+
+    /**
+     * Сжатие одной таблицы, в которой слишком много могилок, на ее же уровень:
+     * могилка выбрасывается, если более старых версий ее ключа нет ни в одной другой таблице.
+     *
+     * @param generation поколение таблицы
+     * @param level уровень таблицы
+     */
+    static CompactionTask tombstonePurge(final int generation, final int level) {
+        return new CompactionTask(Collections.singleton(generation), level, false, Long.MAX_VALUE, true);
+    }
+
+    Set<Integer> getInputs() {
+        return inputs;
+    }
+
+    int getOutputLevel() {
+        return outputLevel;
+    }
+
+    boolean isDropTombstones() {
+        return dropTombstones;
+    }
+
+    long getMaxOutputSize() {
+        return maxOutputSize;
+    }
+
+    boolean isTombstonePurge() {
+        return tombstonePurge;
+    }
+
+    @Override
+    public String toString() {
+        return "inputs " + inputs + " -> level " + outputLevel
+                + (dropTombstones ? ", drop tombstones" : "")
+                + (tombstonePurge ? ", purge tombstones" : "");
+    }
+}
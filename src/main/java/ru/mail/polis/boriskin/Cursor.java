@@ -0,0 +1,58 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Курсор по ячейкам таблицы в порядке возрастания ключей,
+ * а открытый в обратном порядке (см. {@link Table#cursor(ByteBuffer, ByteBuffer, boolean)}) -- убывания.
+ * В отличие от итератора не создает объектов на каждую ячейку:
+ * ключ и значение отдаются как представления, которые принадлежат курсору.
+ *
+ * <p>Представления действительны только до следующего {@link #next()} или {@link #seek(ByteBuffer)}
+ * и не должны изменяться, в том числе их position и limit.
+ * Байты ключа после сдвига курсора могут быть перезаписаны;
+ * значение, которое можно хранить дольше, отдает {@link #value()}.
+ */
+public interface Cursor {
+
+    /**
+     * Встает на первую ячейку с ключом не меньше point,
+     * а курсор в порядке убывания -- на последнюю ячейку с ключом меньше point.
+     * Ячейки за границами диапазона курсора он не показывает.
+     *
+     * @param point с какого ключа читать
+     */
+    void seek(@NotNull ByteBuffer point) throws IOException;
+
+    // стоит ли курсор на ячейке; после последней ячейки -- нет
+    boolean isValid();
+
+    // к следующей ячейке в порядке курсора; только если курсор стоит на ячейке
+    void next() throws IOException;
+
+    @NotNull
+    ByteBuffer keyView();
+
+    // значение живой ячейки; у могилки значения нет
+    @NotNull
+    ByteBuffer valueView();
+
+    /**
+     * Значение живой ячейки, которое остается действительным и после сдвига курсора.
+     * Байты значения на диске остаются на месте, так что хватает собственного буфера над ними,
+     * а MemTable вне кучи копирует их: его память переходит к другим таблицам.
+     *
+     * @return собственный буфер значения
+     */
+    @NotNull
+    default ByteBuffer value() {
+        return valueView().slice();
+    }
+
+    long timestamp();
+
+    boolean isTombstone();
+}
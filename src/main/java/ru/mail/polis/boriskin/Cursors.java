@@ -0,0 +1,211 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Обертки над {@link Cursor}'ами.
+ */
+final class Cursors {
+    private Cursors() {
+        // do nothing
+    }
+
+    // ячейки, пока их суммарный размер не превысит maxSize
+    static Cursor limit(@NotNull final Cursor cursor, final long maxSize) {
+        return new ForwardingCursor(cursor) {
+            private long size;
+
+            @Override
+            public boolean isValid() {
+                return size < maxSize && cursor.isValid();
+            }
+
+            @Override
+            public void next() throws IOException {
+                size += cursor.keyView().remaining() + Long.BYTES
+                        + (cursor.isTombstone() ? 0 : cursor.valueView().remaining());
+                cursor.next();
+            }
+        };
+    }
+
+    /**
+     * Записи для пользователя: только здесь ключ копируется, а значение получает собственный буфер.
+     *
+     * @param cursor курсор без могилок
+     * @return итератор, сдвигающий курсор
+     */
+    static Iterator<Record> records(@NotNull final Cursor cursor) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.isValid();
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                assert !cursor.isTombstone();
+                final ByteBuffer key = ByteBuffer.allocate(cursor.keyView().remaining());
+                key.put(cursor.keyView().duplicate());
+                key.flip();
+                final Record record = Record.of(key, cursor.value());
+                try {
+                    cursor.next();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return record;
+            }
+        };
+    }
+
+    /**
+     * Ячейки из записей пользователя с одной на всех версией -- для загрузки таблиц в обход MemTable'а.
+     * Порядок проверяется по ходу чтения: ключ, не больше предыдущего, -- {@link IllegalArgumentException}.
+     *
+     * @param records записи по строго возрастающим ключам
+     * @param timeStamp версия всех ячеек
+     * @return курсор без {@link Cursor#seek(ByteBuffer)}
+     */
+    static Cursor sortedRecords(@NotNull final Iterator<Record> records, final long timeStamp) {
+        return new RecordCursor(records, timeStamp);
+    }
+
+    private static final class RecordCursor implements Cursor {
+        private final Iterator<Record> records;
+        private final long timeStamp;
+        private ByteBuffer key;
+        private ByteBuffer value;
+        private long count;
+
+        // копия предыдущего ключа: пользователь может переиспользовать буфер
+        private byte[] prev = new byte[32];
+        private int prevLength;
+
+        RecordCursor(@NotNull final Iterator<Record> records, final long timeStamp) {
+            this.records = records;
+            this.timeStamp = timeStamp;
+            advance();
+        }
+
+        @Override
+        public void seek(@NotNull final ByteBuffer point) {
+            throw new UnsupportedOperationException("Записи читаются только подряд");
+        }
+
+        @Override
+        public boolean isValid() {
+            return key != null;
+        }
+
+        @Override
+        public void next() {
+            prevLength = key.remaining();
+            if (prev.length < prevLength) {
+                prev = new byte[Math.max(prev.length * 2, prevLength)];
+            }
+            key.duplicate().get(prev, 0, prevLength);
+
+            advance();
+            if (key != null && Bytes.compare(prev, prevLength, key) >= 0) {
+                throw new IllegalArgumentException("Ключи должны строго возрастать, нарушено на записи " + count);
+            }
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer keyView() {
+            return key;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer valueView() {
+            return value;
+        }
+
+        @Override
+        public long timestamp() {
+            return timeStamp;
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return false;
+        }
+
+        private void advance() {
+            if (records.hasNext()) {
+                final Record record = records.next();
+                key = record.getKey();
+                value = record.getValue();
+                count++;
+            } else {
+                key = null;
+                value = null;
+            }
+        }
+    }
+
+    // все вызовы уходят в исходный курсор
+    private abstract static class ForwardingCursor implements Cursor {
+        private final Cursor cursor;
+
+        ForwardingCursor(@NotNull final Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void seek(@NotNull final ByteBuffer point) throws IOException {
+            cursor.seek(point);
+        }
+
+        @Override
+        public boolean isValid() {
+            return cursor.isValid();
+        }
+
+        @Override
+        public void next() throws IOException {
+            cursor.next();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer keyView() {
+            return cursor.keyView();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer valueView() {
+            return cursor.valueView();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer value() {
+            return cursor.value();
+        }
+
+        @Override
+        public long timestamp() {
+            return cursor.timestamp();
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return cursor.isTombstone();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Настройки {@link NewDAO} целиком (как DBOptions в RocksDB):
+ * когда сбрасывать MemTable, сколько замороженных MemTable'ов держать в памяти,
+ * когда сбрасывать лог, как и сколькими потоками сжимать SSTable'ы и как их записывать,
+ * сколько хранить могилки и когда сжимать таблицы ради них.
+ *
+ * <p>MemTable'ы вне кучи ({@link TableOptions#withOffHeapMemTable(boolean)}) занимают память,
+ * которую JVM ограничивает -XX:MaxDirectMemorySize (по умолчанию -- столько же, сколько -Xmx):
+ * текущий MemTable и все ожидающие сброса, каждый до наибольшего порога сброса.
+ * Если они туда не помещаются, {@link NewDAO} не откроется с {@link IllegalArgumentException},
+ * а не упадет с {@link OutOfMemoryError} посреди записи.
+ */
+public final class DBOptions {
+    private static final long DEFAULT_MEM_TABLE_SIZE = 4L * 1024 * 1024;
+    // сколько замороженных MemTable'ов может ожидать сброса, прежде чем запись начнет блокироваться
+    private static final int DEFAULT_MAX_FLUSH_QUEUE_SIZE = 2;
+    private static final SyncPolicy DEFAULT_SYNC_POLICY = SyncPolicy.periodic(100L);
+    // больше таблиц читать слишком дорого, даже если стратегия считает иначе
+    private static final int DEFAULT_MAX_TABLE_COUNT = 64;
+    // таблица, в которой хотя бы пятая часть ячеек -- могилки, сжимается отдельно (как в Cassandra)
+    private static final double DEFAULT_TOMBSTONE_COMPACTION_RATIO = 0.2;
+
+    private final long memTableSize;
+    private final long maxMemTableSize;
+    private final int maxFlushQueueSize;
+    private final SyncPolicy syncPolicy;
+    private final CompactionStrategy compactionStrategy;
+    private final int maxTableCount;
+    private final int compactionThreads;
+    private final TableOptions tableOptions;
+    private final long tombstoneGracePeriod;
+    private final double tombstoneCompactionRatio;
+
+    private DBOptions(final long memTableSize,
+                      final long maxMemTableSize,
+                      final int maxFlushQueueSize,
+                      @NotNull final SyncPolicy syncPolicy,
+                      @NotNull final CompactionStrategy compactionStrategy,
+                      final int maxTableCount,
+                      final int compactionThreads,
+                      @NotNull final TableOptions tableOptions,
+                      final long tombstoneGracePeriod,
+                      final double tombstoneCompactionRatio) {
+        this.memTableSize = memTableSize;
+        this.maxMemTableSize = maxMemTableSize;
+        this.maxFlushQueueSize = maxFlushQueueSize;
+        this.syncPolicy = syncPolicy;
+        this.compactionStrategy = compactionStrategy;
+        this.maxTableCount = maxTableCount;
+        this.compactionThreads = compactionThreads;
+        this.tableOptions = tableOptions;
+        this.tombstoneGracePeriod = tombstoneGracePeriod;
+        this.tombstoneCompactionRatio = tombstoneCompactionRatio;
+    }
+
+    // MemTable по 4 MB, два в очереди на сброс, лог раз в 100 мс, size-tiered compaction во все ядра,
+    // могилки выбрасываются при первой возможности
+    public static DBOptions defaults() {
+        return new DBOptions(DEFAULT_MEM_TABLE_SIZE, DEFAULT_MEM_TABLE_SIZE, DEFAULT_MAX_FLUSH_QUEUE_SIZE,
+                DEFAULT_SYNC_POLICY, CompactionStrategy.sizeTiered(), DEFAULT_MAX_TABLE_COUNT,
+                Runtime.getRuntime().availableProcessors(), TableOptions.defaults(),
+                0L, DEFAULT_TOMBSTONE_COMPACTION_RATIO);
+    }
+
+    /**
+     * Постоянный порог сброса MemTable'а.
+     *
+     * @param memTableSize при каком размере MemTable'а сбрасывать его на диск
+     * @return настройки
+     */
+    public DBOptions withMemTableSize(final long memTableSize) {
+        if (memTableSize < 0) {
+            throw new IllegalArgumentException("Размер MemTable'а не может быть отрицательным: " + memTableSize);
+        }
+        return new DBOptions(memTableSize, memTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Порог сброса MemTable'а, который подстраивается под нагрузку ({@link FlushThreshold}):
+     * растет, пока MemTable'ы заполняются быстро, чтобы всплеск записи не рассыпался на мелкие SSTable'ы,
+     * уменьшается, когда запись затихает, и не выходит за долю свободной кучи.
+     *
+     * @param minMemTableSize с какого порога начинать и ниже какого не опускаться
+     * @param maxMemTableSize выше какого порога не подниматься
+     * @return настройки
+     */
+    public DBOptions withAdaptiveMemTableSize(final long minMemTableSize, final long maxMemTableSize) {
+        if (minMemTableSize <= 0 || maxMemTableSize < minMemTableSize) {
+            throw new IllegalArgumentException("Неверные границы размера MemTable'а: "
+                    + minMemTableSize + ".." + maxMemTableSize);
+        }
+        return new DBOptions(minMemTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Глубина очереди на сброс.
+     *
+     * @param maxFlushQueueSize сколько заполненных MemTable'ов может одновременно ожидать сброса на диск,
+     *                          прежде чем upsert/remove начнут блокироваться
+     * @return настройки
+     */
+    public DBOptions withMaxFlushQueueSize(final int maxFlushQueueSize) {
+        if (maxFlushQueueSize <= 0) {
+            throw new IllegalArgumentException("Очередь на сброс должна быть положительной: " + maxFlushQueueSize);
+        }
+        return new DBOptions(memTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Когда сбрасывать write-ahead log на диск.
+     *
+     * @param syncPolicy политика fsync'а лога
+     * @return настройки
+     */
+    public DBOptions withSyncPolicy(@NotNull final SyncPolicy syncPolicy) {
+        return new DBOptions(memTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Какие SSTable'ы сжимать в фоне.
+     *
+     * @param compactionStrategy стратегия compaction'а
+     * @return настройки
+     */
+    public DBOptions withCompactionStrategy(@NotNull final CompactionStrategy compactionStrategy) {
+        return new DBOptions(memTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Предельное число SSTable'ов: если стратегия не предлагает, что сжать, а таблиц больше,
+     * в фоне сжимаются все таблицы.
+     *
+     * @param maxTableCount сколько SSTable'ов допустимо держать на диске
+     * @return настройки
+     */
+    public DBOptions withMaxTableCount(final int maxTableCount) {
+        if (maxTableCount <= 0) {
+            throw new IllegalArgumentException("Число таблиц должно быть положительным: " + maxTableCount);
+        }
+        return new DBOptions(memTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Параллельность compaction'а.
+     *
+     * @param compactionThreads на сколько диапазонов ключей, сжимаемых параллельно, можно делить compaction
+     * @return настройки
+     */
+    public DBOptions withCompactionThreads(final int compactionThreads) {
+        if (compactionThreads <= 0) {
+            throw new IllegalArgumentException("Число потоков должно быть положительным: " + compactionThreads);
+        }
+        return new DBOptions(memTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Как записывать и читать таблицы.
+     *
+     * @param tableOptions размер блоков и сжатие новых SSTable'ов, размер кэша блоков, вид MemTable'а
+     * @return настройки
+     */
+    public DBOptions withTableOptions(@NotNull final TableOptions tableOptions) {
+        return new DBOptions(memTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Сколько хранить могилки: compaction выбрасывает только могилки старше grace period,
+     * а более свежие переписывает вместе с остальными ячейками.
+     *
+     * @param tombstoneGracePeriod в миллисекундах; 0 -- выбрасывать при первой возможности
+     * @return настройки
+     */
+    public DBOptions withTombstoneGracePeriod(final long tombstoneGracePeriod) {
+        if (tombstoneGracePeriod < 0) {
+            throw new IllegalArgumentException("Grace period не может быть отрицательным: " + tombstoneGracePeriod);
+        }
+        return new DBOptions(memTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    /**
+     * Когда сжимать таблицу ради ее могилок: если стратегии сжимать нечего,
+     * таблица, в которой доля могилок не меньше заданной и есть могилки старше grace period,
+     * переписывается без тех из них, под которыми в других таблицах ничего нет.
+     * Таблица выбирается, только если таких могилок в ней точно найдется хотя бы одна:
+     * ни в одной пересекающейся с ней по ключам таблице нет ячеек старше ее самой старой могилки.
+     * Поэтому сброс, удаляющий ключи из более старых таблиц, ради могилок не переписывается.
+     *
+     * @param tombstoneCompactionRatio доля могилок среди ячеек таблицы; больше 1 -- не сжимать ради могилок
+     * @return настройки
+     */
+    public DBOptions withTombstoneCompactionRatio(final double tombstoneCompactionRatio) {
+        if (!(tombstoneCompactionRatio > 0)) {
+            throw new IllegalArgumentException("Доля могилок должна быть положительной: " + tombstoneCompactionRatio);
+        }
+        return new DBOptions(memTableSize, maxMemTableSize, maxFlushQueueSize, syncPolicy,
+                compactionStrategy, maxTableCount, compactionThreads, tableOptions,
+                tombstoneGracePeriod, tombstoneCompactionRatio);
+    }
+
+    long getMemTableSize() {
+        return memTableSize;
+    }
+
+    long getMaxMemTableSize() {
+        return maxMemTableSize;
+    }
+
+    int getMaxFlushQueueSize() {
+        return maxFlushQueueSize;
+    }
+
+    /**
+     * Сколько памяти вне кучи могут занять MemTable'ы: текущий и все ожидающие сброса,
+     * каждый -- до наибольшего порога сброса и недозаполненный slab сверху.
+     *
+     * @return байт; 0, если MemTable'ы в куче
+     */
+    long getOffHeapMemTableSize() {
+        if (!tableOptions.isOffHeapMemTable()) {
+            return 0L;
+        }
+        final long tables = maxFlushQueueSize + 1L;
+        final long table = maxMemTableSize > Long.MAX_VALUE - Arena.SLAB_SIZE
+                ? Long.MAX_VALUE
+                : maxMemTableSize + Arena.SLAB_SIZE;
+        return table > Long.MAX_VALUE / tables ? Long.MAX_VALUE : table * tables;
+    }
+
+    SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    CompactionStrategy getCompactionStrategy() {
+        return compactionStrategy;
+    }
+
+    int getMaxTableCount() {
+        return maxTableCount;
+    }
+
+    int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    TableOptions getTableOptions() {
+        return tableOptions;
+    }
+
+    long getTombstoneGracePeriod() {
+        return tombstoneGracePeriod;
+    }
+
+    double getTombstoneCompactionRatio() {
+        return tombstoneCompactionRatio;
+    }
+
+    @Override
+    public String toString() {
+        return "memtable " + memTableSize + (maxMemTableSize > memTableSize ? ".." + maxMemTableSize : "")
+                + " bytes, flush queue " + maxFlushQueueSize + ", max " + maxTableCount + " tables, "
+                + compactionThreads + " compaction threads, tombstones kept " + tombstoneGracePeriod
+                + " ms, purged at ratio " + tombstoneCompactionRatio + ", " + tableOptions;
+    }
+}
@@ -0,0 +1,232 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Блок отсортированных ячеек: [ячейки][смещения ячеек (int)][число ячеек (int)].
+ * Ячейка -- [длина ключа][ключ][версия], а у живого значения еще [длина значения][значение];
+ * у могилки версия отрицательная.
+ * В файлах версии 0 так устроена вся таблица целиком.
+ */
+final class DenseBlock implements Block {
+    private final ByteBuffer cells;
+    // хранит указатели на начало каждой строки
+    private final IntBuffer offsets;
+    private final int rows;
+
+    /**
+     * Блок поверх готовых байт.
+     *
+     * @param data байты блока от position до limit, не копируются
+     */
+    DenseBlock(@NotNull final ByteBuffer data) {
+        final ByteBuffer block = data.slice();
+        final int end = block.limit();
+        this.rows = block.getInt(end - Integer.BYTES);
+
+        final ByteBuffer offsetsByteBuffer = block.duplicate();
+        final ByteBuffer cellsByteBuffer = block.duplicate();
+
+        offsetsByteBuffer.position(end - Integer.BYTES * rows - Integer.BYTES);
+        offsetsByteBuffer.limit(end - Integer.BYTES);
+        cellsByteBuffer.limit(offsetsByteBuffer.position());
+
+        this.offsets = offsetsByteBuffer.slice().asIntBuffer();
+        this.cells = cellsByteBuffer.slice();
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @NotNull
+    @Override
+    public Cursor cursor(@NotNull final ByteBuffer point) {
+        final RowCursor cursor = new RowCursor(false);
+        cursor.seek(point);
+        return cursor;
+    }
+
+    @NotNull
+    @Override
+    public Cursor descendingCursor(@Nullable final ByteBuffer to) {
+        final RowCursor cursor = new RowCursor(true);
+        if (to == null) {
+            cursor.index = rows - 1;
+            cursor.read();
+        } else {
+            cursor.seek(to);
+        }
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        final int index = findNext(key);
+        if (index >= rows || compareK(index, key) != 0) {
+            return null;
+        }
+        final long timeStamp = timeStampAt(index);
+        return timeStamp < 0 ? new Value(-timeStamp, null) : new Value(timeStamp, valueAt(index));
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer firstKey() {
+        return keyAt(0);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer lastKey() {
+        return keyAt(rows - 1);
+    }
+
+    // бинарный поиск поверх блока: номер первой строки с ключом не меньше point
+    private int findNext(@NotNull final ByteBuffer point) {
+        int l = 0;
+        int r = rows - 1;
+        while (l < r + 1) {
+            // берем строчку n/2
+            final int m = l + (r - l) / 2;
+            // прыгаем по этой строке,
+            // сравниваем ключ прямо в файле с тем, что пользователь передал
+            final int cmp = compareK(m, point);
+            // понимаем в какую сторону смотреть
+            if (cmp < 0) {
+                l = m + 1;
+            } else if (cmp > 0) {
+                r = m - 1;
+            } else {
+                return m;
+            }
+        }
+        return l;
+    }
+
+    private int compareK(final int index, @NotNull final ByteBuffer key) {
+        assert 0 <= index && index < rows;
+
+        final int offset = offsets.get(index);
+        final int sizeOfK = cells.getInt(offset);
+        return Bytes.compare(cells, offset + Integer.BYTES, sizeOfK, key);
+    }
+
+    private ByteBuffer keyAt(final int index) {
+        assert 0 <= index && index < rows;
+
+        final int offset = offsets.get(index);
+        final ByteBuffer key = cells.duplicate();
+        key.position(offset + Integer.BYTES);
+        key.limit(key.position() + cells.getInt(offset));
+        return key.slice();
+    }
+
+    // версия ячейки в строке; отрицательная у могилки
+    private long timeStampAt(final int index) {
+        assert 0 <= index && index < rows;
+
+        final int offset = offsets.get(index);
+        return cells.getLong(offset + Integer.BYTES + cells.getInt(offset));
+    }
+
+    private ByteBuffer valueAt(final int index) {
+        assert timeStampAt(index) >= 0;
+
+        int offset = offsets.get(index);
+        offset += Integer.BYTES + cells.getInt(offset) + Long.BYTES;
+        final int sizeOfV = cells.getInt(offset);
+        offset += Integer.BYTES;
+
+        final ByteBuffer val = cells.duplicate();
+        val.position(offset);
+        val.limit(offset + sizeOfV);
+        return val.slice();
+    }
+
+    // идет по строкам блока, переставляя одни и те же представления ключа и значения
+    private final class RowCursor implements Cursor {
+        private final ByteBuffer keyView = cells.duplicate();
+        private final ByteBuffer valueView = cells.duplicate();
+        private final boolean descending;
+        private int index;
+        private long timeStamp;
+
+        RowCursor(final boolean descending) {
+            this.descending = descending;
+        }
+
+        @Override
+        public void seek(@NotNull final ByteBuffer point) {
+            // в порядке убывания -- строка перед первой с ключом не меньше point
+            index = descending ? findNext(point) - 1 : findNext(point);
+            read();
+        }
+
+        @Override
+        public boolean isValid() {
+            return 0 <= index && index < rows;
+        }
+
+        @Override
+        public void next() {
+            index += descending ? -1 : 1;
+            read();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer keyView() {
+            return keyView;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer valueView() {
+            assert timeStamp >= 0;
+            return valueView;
+        }
+
+        @Override
+        public long timestamp() {
+            return Math.abs(timeStamp);
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return timeStamp < 0;
+        }
+
+        private void read() {
+            if (!isValid()) {
+                return;
+            }
+            int offset = offsets.get(index);
+
+            // используем длину ключа
+            final int sizeOfK = cells.getInt(offset);
+            offset += Integer.BYTES;
+            keyView.limit(offset + sizeOfK);
+            keyView.position(offset);
+            offset += sizeOfK;
+
+            // работа с версией
+            timeStamp = cells.getLong(offset);
+            offset += Long.BYTES;
+
+            // если это нормальное значение, то дальше длина этого значения и само значение
+            if (timeStamp >= 0) {
+                final int sizeOfV = cells.getInt(offset);
+                offset += Integer.BYTES;
+                valueView.limit(offset + sizeOfV);
+                valueView.position(offset);
+            }
+        }
+    }
+}
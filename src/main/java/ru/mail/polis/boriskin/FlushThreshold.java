@@ -0,0 +1,106 @@
+package ru.mail.polis.boriskin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Размер, при котором MemTable замораживается и сбрасывается на диск.
+ * Постоянный, если границы совпадают; иначе пересчитывается при каждой заморозке MemTable'а, дошедшего до порога
+ * (заморозки снимков и закрытия не в счет):
+ * MemTable, заполнившийся быстрее секунды, -- признак всплеска записи, и следующий может быть вдвое больше
+ * (меньше мелких SSTable'ов и compaction'ов), а заполнявшийся дольше полуминуты -- признак затишья,
+ * и следующий вдвое меньше (короче лог, который придется проигрывать после падения).
+ * В любом случае все MemTable'ы, которые могут оказаться в памяти одновременно,
+ * должны занимать не больше половины кучи, свободной после последней сборки мусора.
+ */
+final class FlushThreshold {
+    private static final Logger log = LoggerFactory.getLogger(FlushThreshold.class);
+
+    private static final long FAST_FILL = TimeUnit.SECONDS.toNanos(1);
+    private static final long SLOW_FILL = TimeUnit.SECONDS.toNanos(30);
+    private static final List<MemoryPoolMXBean> HEAP_POOLS = heapPools();
+
+    private final long min;
+    private final long max;
+    // текущий MemTable и замороженные, ожидающие сброса
+    private final int memTables;
+    private volatile long value;
+    // guarded by memTableLock (write lock)
+    private long filledSince = System.nanoTime();
+
+    /**
+     * Порог сброса.
+     *
+     * @param min начальный и наименьший порог
+     * @param max наибольший порог
+     * @param memTables сколько MemTable'ов может одновременно находиться в памяти
+     */
+    FlushThreshold(final long min, final long max, final int memTables) {
+        assert 0 <= min && min <= max && memTables > 0;
+        this.min = min;
+        this.max = max;
+        this.memTables = memTables;
+        this.value = min;
+    }
+
+    long get() {
+        return value;
+    }
+
+    /**
+     * Учитывает, как быстро заполнился до порога только что замороженный MemTable.
+     * Вызывается под write lock'ом MemTable'а.
+     */
+    void onFreeze() {
+        if (min == max) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long fill = now - filledSince;
+        filledSince = now;
+
+        final long prev = value;
+        long next = prev;
+        if (fill < FAST_FILL) {
+            next = prev > max / 2 ? max : prev * 2;
+        } else if (fill > SLOW_FILL) {
+            next = prev / 2;
+        }
+        next = Math.max(min, Math.min(Math.min(next, max), heapHeadroom() / 2 / memTables));
+        if (next != prev) {
+            log.debug("Порог сброса MemTable'а: {} -> {} байт (заполнен за {} мс)",
+                    prev, next, TimeUnit.NANOSECONDS.toMillis(fill));
+            value = next;
+        }
+    }
+
+    // свободная куча после последней сборки мусора: мусор, накопившийся с тех пор, не в счет
+    private static long heapHeadroom() {
+        long used = 0;
+        for (final MemoryPoolMXBean pool : HEAP_POOLS) {
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return Math.max(0L, Runtime.getRuntime().maxMemory() - used);
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        final List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+}
@@ -0,0 +1,144 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Leveled compaction (как в LevelDB).
+ * На уровень 0 попадают сброшенные MemTable'ы, их ключи могут пересекаться.
+ * На уровнях начиная с первого таблицы не пересекаются по ключам,
+ * а предельный размер уровня растет в {@link #LEVEL_MULTIPLIER} раз.
+ * Переполненный уровень сжимается по одной таблице вместе с пересекающимися таблицами следующего уровня,
+ * так что за раз переписывается лишь небольшая часть данных.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    private static final int LEVEL_MULTIPLIER = 10;
+
+    private final int level0Trigger;
+    private final long targetFileSize;
+
+    LeveledCompaction(final int level0Trigger, final long targetFileSize) {
+        assert level0Trigger > 0 && targetFileSize > 0;
+        this.level0Trigger = level0Trigger;
+        this.targetFileSize = targetFileSize;
+    }
+
+    @Nullable
+    @Override
+    public CompactionTask pick(@NotNull final NavigableMap<Integer, SortedStringTable> ssTables) {
+        final NavigableMap<Integer, NavigableMap<Integer, SortedStringTable>> levels = new TreeMap<>();
+        for (final Map.Entry<Integer, SortedStringTable> entry : ssTables.entrySet()) {
+            levels.computeIfAbsent(entry.getValue().getLevel(), l -> new TreeMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+
+        final NavigableMap<Integer, SortedStringTable> level0 = levels.getOrDefault(0, new TreeMap<>());
+        if (level0.size() >= level0Trigger) {
+            // все таблицы нулевого уровня разом: они пересекаются и друг с другом
+            return task(level0, 1, levels);
+        }
+
+        for (final Map.Entry<Integer, NavigableMap<Integer, SortedStringTable>> level : levels.entrySet()) {
+            if (level.getKey() == 0) {
+                continue;
+            }
+            long size = 0;
+            for (final SortedStringTable table : level.getValue().values()) {
+                size += table.getSize();
+            }
+            if (size > maxLevelSize(level.getKey())) {
+                // самая старая таблица уровня -- так уровень сжимается по кругу
+                final Map.Entry<Integer, SortedStringTable> oldest = level.getValue().firstEntry();
+                final NavigableMap<Integer, SortedStringTable> picked = new TreeMap<>();
+                picked.put(oldest.getKey(), oldest.getValue());
+                return task(picked, level.getKey() + 1, levels);
+            }
+        }
+        return null;
+    }
+
+    private long maxLevelSize(final int level) {
+        long size = targetFileSize * LEVEL_MULTIPLIER;
+        for (int i = 1; i < level; i++) {
+            size *= LEVEL_MULTIPLIER;
+        }
+        return size;
+    }
+
+    private CompactionTask task(@NotNull final NavigableMap<Integer, SortedStringTable> picked,
+                                final int outputLevel,
+                                @NotNull final NavigableMap<Integer, NavigableMap<Integer, SortedStringTable>> levels) {
+        final List<Integer> inputs = new ArrayList<>(picked.keySet());
+        ByteBuffer min = min(picked.values());
+        ByteBuffer max = max(picked.values());
+
+        // и все пересекающиеся таблицы следующего уровня, чтобы он остался без пересечений
+        final List<SortedStringTable> overlapping = new ArrayList<>();
+        for (final Map.Entry<Integer, SortedStringTable> entry
+                : levels.getOrDefault(outputLevel, new TreeMap<>()).entrySet()) {
+            if (overlaps(entry.getValue(), min, max)) {
+                inputs.add(entry.getKey());
+                overlapping.add(entry.getValue());
+            }
+        }
+        if (!overlapping.isEmpty()) {
+            min = Bytes.min(min, min(overlapping));
+            max = Bytes.max(max, max(overlapping));
+        }
+
+        // могилки можно выбросить, если глубже нет таблиц с теми же ключами
+        boolean bottom = true;
+        for (final NavigableMap<Integer, SortedStringTable> deeper : levels.tailMap(outputLevel, false).values()) {
+            for (final SortedStringTable table : deeper.values()) {
+                if (overlaps(table, min, max)) {
+                    bottom = false;
+                }
+            }
+        }
+
+        return new CompactionTask(inputs, outputLevel, bottom, targetFileSize);
+    }
+
+    private static boolean overlaps(@NotNull final SortedStringTable table,
+                                    @Nullable final ByteBuffer min,
+                                    @Nullable final ByteBuffer max) {
+        final ByteBuffer tableMin = table.getMinKey();
+        final ByteBuffer tableMax = table.getMaxKey();
+        if (min == null || tableMin == null || tableMax == null) {
+            return false;
+        }
+        return tableMin.compareTo(max) <= 0 && tableMax.compareTo(min) >= 0;
+    }
+
+    @Nullable
+    private static ByteBuffer min(@NotNull final Collection<SortedStringTable> tables) {
+        ByteBuffer result = null;
+        for (final SortedStringTable table : tables) {
+            final ByteBuffer key = table.getMinKey();
+            if (key != null) {
+                result = result == null ? key : Bytes.min(result, key);
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    private static ByteBuffer max(@NotNull final Collection<SortedStringTable> tables) {
+        ByteBuffer result = null;
+        for (final SortedStringTable table : tables) {
+            final ByteBuffer key = table.getMaxKey();
+            if (key != null) {
+                result = result == null ? key : Bytes.max(result, key);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,332 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Манифест -- журнал изменений набора SSTable'ов: какие таблицы (с их {@link TableSummary}) добавлены,
+ * какие удалены и каково следующее свободное поколение.
+ * По нему {@link NewDAO} поднимается, не обходя папку и не открывая таблиц:
+ * файлы, которых в манифесте нет, -- недописанные или уже замененные compaction'ом.
+ * Сводки позволяют и при чтении не открывать таблиц, ключи которых не пересекаются с запросом.
+ *
+ * <p>Каждое изменение -- одна запись журнала с номером версии, так что сброс и compaction
+ * применяются целиком или не применяются вовсе, в каком бы порядке они ни шли друг за другом.
+ * Оборванная при падении последняя запись отбрасывается при чтении,
+ * а оборванная неудачной записью -- сразу обрезается, чтобы за ней не легли следующие.
+ * Когда записей становится больше, чем живых таблиц, журнал начинается заново
+ * с одной записи со всем набором (через временный файл и атомарное переименование),
+ * так что и размер манифеста, и время его чтения пропорциональны числу таблиц.
+ *
+ * <p>Формат версии 4: [MAGIC (long)][версия формата (int)], затем записи [длина (int)][CRC32 (int)][изменение],
+ * изменение -- [версия набора (long)][следующее поколение (int)][число добавленных (int)],
+ * по [поколение (int)][сводка] на добавленную таблицу, [число удаленных (int)] и по [поколение (int)] на удаленную.
+ */
+final class Manifest implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+    private static final String NAME = "MANIFEST";
+    private static final String TEMP = ".tmp";
+    // "MANIFEST"
+    private static final long MAGIC = 0x4D414E4946455354L;
+    private static final int VERSION = 4;
+    private static final int HEADER = Long.BYTES + Integer.BYTES;
+    private static final int RECORD_HEADER = Integer.BYTES + Integer.BYTES;
+    // меньше записей журнал не переписывает, даже если таблиц совсем мало
+    private static final int MIN_EDITS = 1000;
+
+    private final File base;
+    // через что пишется журнал; тесты подменяют каналы, чтобы запись не удавалась
+    private final UnaryOperator<FileChannel> channels;
+
+    // guarded by this
+    private final NavigableMap<Integer, TableSummary> tables;
+    private int nextGeneration;
+    private long version;
+    // записей в журнале после полного набора
+    private int edits;
+    private FileChannel channel;
+    // хвост журнала после неудачной записи обрезать не удалось: дописывать можно только в новый журнал
+    private boolean broken;
+
+    private Manifest(@NotNull final File base,
+                     @NotNull final UnaryOperator<FileChannel> channels,
+                     @NotNull final NavigableMap<Integer, TableSummary> tables,
+                     final int nextGeneration,
+                     final long version) {
+        this.base = base;
+        this.channels = channels;
+        this.tables = tables;
+        this.nextGeneration = nextGeneration;
+        this.version = version;
+    }
+
+    // не меньше поколения любой таблицы, которая когда-либо была в наборе
+    synchronized int getNextGeneration() {
+        return nextGeneration;
+    }
+
+    /**
+     * Сводки о живых таблицах по поколению.
+     *
+     * @return копия набора на данный момент
+     */
+    synchronized NavigableMap<Integer, TableSummary> getTables() {
+        return Collections.unmodifiableNavigableMap(new TreeMap<>(tables));
+    }
+
+    /**
+     * Читает манифест из папки с данными и открывает его для дописывания.
+     *
+     * @return манифест или null, если его нет (папка новая или создана до появления манифеста)
+     * @throws IOException если манифест поврежден
+     */
+    @Nullable
+    static Manifest read(@NotNull final File base) throws IOException {
+        return read(base, UnaryOperator.identity());
+    }
+
+    /**
+     * Читает манифест, который пишет через данные каналы.
+     *
+     * @param channels обертка над каждым открытым для записи каналом
+     */
+    @Nullable
+    static Manifest read(@NotNull final File base,
+                         @NotNull final UnaryOperator<FileChannel> channels) throws IOException {
+        final ByteBuffer data;
+        try {
+            data = ByteBuffer.wrap(Files.readAllBytes(file(base).toPath()));
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+
+        if (data.remaining() < HEADER || data.getLong() != MAGIC) {
+            throw new IOException("Поврежденный манифест в " + base);
+        }
+        final int format = data.getInt();
+        if (format != VERSION) {
+            throw new IOException("Неизвестная версия манифеста " + format + " в " + base);
+        }
+
+        final Manifest manifest = new Manifest(base, channels, new TreeMap<>(), 0, 0L);
+        final CRC32 crc = new CRC32();
+        // изменение, оборванное при падении, не применилось; дописывать будем после последнего целого
+        int end = data.position();
+        while (data.remaining() >= RECORD_HEADER) {
+            final int payload = data.getInt();
+            final int checksum = data.getInt();
+            if (payload <= 0 || payload > data.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            final ByteBuffer edit = data.slice();
+            edit.limit(payload);
+            manifest.apply(edit);
+            data.position(data.position() + payload);
+            end = data.position();
+        }
+
+        if (end < data.limit()) {
+            log.warn("Отброшен оборванный хвост манифеста в {}: {} байт", base, data.limit() - end);
+        }
+        manifest.channel = channels.apply(FileChannel.open(file(base).toPath(), StandardOpenOption.WRITE));
+        manifest.channel.truncate(end);
+        manifest.channel.position(end);
+        log.info("Манифест {} версии {}: таблиц {}, записей {}",
+                base, manifest.version, manifest.tables.size(), manifest.edits);
+        return manifest;
+    }
+
+    /**
+     * Заводит новый манифест с данным набором таблиц.
+     *
+     * @param nextGeneration следующее свободное поколение
+     * @param ssTables живые таблицы по поколению
+     */
+    static Manifest create(@NotNull final File base,
+                           final int nextGeneration,
+                           @NotNull final NavigableMap<Integer, SortedStringTable> ssTables) throws IOException {
+        final Manifest manifest = new Manifest(base, UnaryOperator.identity(), entries(ssTables),
+                nextGeneration, 0L);
+        manifest.rewrite();
+        return manifest;
+    }
+
+    /**
+     * Записывает одно изменение набора таблиц.
+     * После возврата изменение лежит на диске, так что удаленные из набора файлы можно удалять.
+     * Если записать не удалось, журнал остается без него, как если бы вызова не было;
+     * если не удалось и обрезать недописанное, журнал начинается заново при следующем изменении,
+     * а пока это не удастся, изменения не записываются.
+     *
+     * @param nextGeneration следующее свободное поколение
+     * @param added новые таблицы по поколению
+     * @param removed поколения выведенных из набора таблиц
+     */
+    synchronized void logEdit(final int nextGeneration,
+                              @NotNull final Map<Integer, SortedStringTable> added,
+                              @NotNull final Collection<Integer> removed) throws IOException {
+        if (broken) {
+            rewrite();
+        }
+        final ByteBuffer record = record(version + 1, nextGeneration, entries(added), removed);
+        final long start = channel.position();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            // иначе следующие записи легли бы за оборванной, и при чтении журнал кончился бы на ней
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException truncateFailure) {
+                broken = true;
+                ex.addSuppressed(truncateFailure);
+            }
+            throw ex;
+        }
+
+        record.position(RECORD_HEADER);
+        apply(record);
+        if (edits > Math.max(MIN_EDITS, tables.size())) {
+            try {
+                rewrite();
+            } catch (IOException ex) {
+                // изменение уже на диске, а длинный журнал можно переписать и в следующий раз
+                log.warn("Не удалось переписать манифест в {}", base, ex);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    // guarded by this
+    private void apply(@NotNull final ByteBuffer edit) {
+        version = edit.getLong();
+        nextGeneration = Math.max(nextGeneration, edit.getInt());
+        final int added = edit.getInt();
+        for (int i = 0; i < added; i++) {
+            final int generation = edit.getInt();
+            tables.put(generation, TableSummary.readFrom(edit));
+        }
+        final int removed = edit.getInt();
+        for (int i = 0; i < removed; i++) {
+            tables.remove(edit.getInt());
+        }
+        edits++;
+    }
+
+    /**
+     * Начинает журнал заново с одной записи со всем набором таблиц.
+     * Новый журнал пишется во временный файл и атомарно подменяет старый.
+     */
+    // guarded by this
+    private void rewrite() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putLong(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        final ByteBuffer record = record(version, nextGeneration, tables, Collections.emptyList());
+
+        final File temp = new File(base, NAME + TEMP);
+        final FileChannel rewritten = channels.apply(FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE));
+        try {
+            while (header.hasRemaining() || record.hasRemaining()) {
+                rewritten.write(new ByteBuffer[]{header, record});
+            }
+            rewritten.force(false);
+            Files.move(temp.toPath(), file(base).toPath(), ATOMIC_MOVE);
+        } catch (IOException ex) {
+            rewritten.close();
+            throw ex;
+        }
+        NewDAO.syncDirectory(base);
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = rewritten;
+        edits = 1;
+        broken = false;
+    }
+
+    // запись журнала с одним изменением, готовая к записи в файл
+    private static ByteBuffer record(final long version,
+                                     final int nextGeneration,
+                                     @NotNull final Map<Integer, TableSummary> added,
+                                     @NotNull final Collection<Integer> removed) {
+        int length = RECORD_HEADER + Long.BYTES + Integer.BYTES
+                + Integer.BYTES + Integer.BYTES + removed.size() * Integer.BYTES;
+        for (final TableSummary summary : added.values()) {
+            length += Integer.BYTES + summary.serializedSize();
+        }
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        record.position(RECORD_HEADER);
+        record.putLong(version);
+        record.putInt(nextGeneration);
+        record.putInt(added.size());
+        for (final Map.Entry<Integer, TableSummary> entry : added.entrySet()) {
+            record.putInt(entry.getKey());
+            entry.getValue().writeTo(record);
+        }
+        record.putInt(removed.size());
+        for (final int generation : removed) {
+            record.putInt(generation);
+        }
+
+        final int payload = record.position() - RECORD_HEADER;
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER, payload);
+        record.putInt(0, payload);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static NavigableMap<Integer, TableSummary> entries(
+            @NotNull final Map<Integer, SortedStringTable> ssTables) {
+        final NavigableMap<Integer, TableSummary> entries = new TreeMap<>();
+        for (final Map.Entry<Integer, SortedStringTable> entry : ssTables.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue().getSummary());
+        }
+        return entries;
+    }
+
+    private static File file(@NotNull final File base) {
+        return new File(base, NAME);
+    }
+}
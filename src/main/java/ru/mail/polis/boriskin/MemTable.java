@@ -1,42 +1,63 @@
 package ru.mail.polis.boriskin;
 
-import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public final class MemTable implements Table {
+/**
+ * MemTable, допускающий одновременную запись и чтение из нескольких потоков.
+ * Размер считается атомарно: каждый put возвращает ровно то значение,
+ * которое он заменил, поэтому приращения от разных потоков складываются корректно.
+ */
+public final class MemTable implements MutableTable {
 
-    private final SortedMap<ByteBuffer, Value> map = new TreeMap<>();
-    private long size;
+    /*
+     * Примерные накладные расходы на одну запись в куче: узел skip list'а с его индексными узлами (~40 байт),
+     * ByteBuffer'ы ключа и значения (~2 x 48), Value (~24).
+     * Без них размер мелких записей занижен в разы, а в памяти одновременно живут
+     * текущий MemTable и очередь замороженных: порог, выставленный по байтам данных, переполнял бы кучу.
+     */
+    static final int ENTRY_OVERHEAD = 160;
+
+    private final ConcurrentNavigableMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
+    private final AtomicLong size = new AtomicLong();
 
     @Override
     public long getSize() {
-        return size;
+        return size.get();
     }
 
     @NotNull
     @Override
-    public Iterator<TableCell> iterator(@NotNull final ByteBuffer point) throws IOException {
-        return Iterators.transform(
-          map.tailMap(point).entrySet().iterator(),
-          e -> new TableCell(e.getKey(), e.getValue()));
+    public Cursor cursor(@NotNull final ByteBuffer from,
+                         @Nullable final ByteBuffer to,
+                         final boolean descending) {
+        final EntryCursor cursor = new EntryCursor(from, to, descending);
+        if (descending) {
+            cursor.seekBefore(to);
+        } else {
+            cursor.seek(from);
+        }
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        return map.get(key);
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer val) throws IOException {
-        final Value prev = map.put(key, Value.valueOf(val));
-        if (prev == null) {
-            size += key.remaining() + val.remaining();
-        } else if (prev.wasRemoved()) {
-            size += val.remaining();
-        } else {
-            size += val.remaining() - prev.getData().remaining();
-        }
+        put(key, Value.valueOf(val));
     }
 
     /**
@@ -51,11 +72,115 @@ public final class MemTable implements Table {
     @Override
     public void remove(@NotNull final ByteBuffer key) {
         // сохраняем могилку (говорим, что значение removed)
-        final Value prev = map.put(key, Value.tombstone());
-        if (prev == null) {
-            size += key.remaining();
-        } else if (!prev.wasRemoved()) {
-            size -= prev.getData().remaining();
+        put(key, Value.tombstone());
+    }
+
+    @Override
+    public void put(@NotNull final ByteBuffer key, @NotNull final Value val) {
+        while (true) {
+            final Value prev = map.putIfAbsent(key, val);
+            if (prev == null) {
+                size.addAndGet(ENTRY_OVERHEAD + key.remaining() + sizeOf(val));
+                return;
+            }
+            if (prev.getTimeStamp() > val.getTimeStamp()) {
+                return;
+            }
+            if (map.replace(key, prev, val)) {
+                size.addAndGet(sizeOf(val) - sizeOf(prev));
+                return;
+            }
+        }
+    }
+
+    // память в куче освобождает сборщик мусора, так что ссылки считать не нужно
+    @Override
+    public boolean tryRetain() {
+        return true;
+    }
+
+    @Override
+    public void release() {
+        // освобождать нечего
+    }
+
+    private static int sizeOf(@NotNull final Value val) {
+        return val.wasRemoved() ? 0 : val.getData().remaining();
+    }
+
+    // представления -- сами ключи и значения из skip list'а
+    private final class EntryCursor implements Cursor {
+        private final ByteBuffer from;
+        @Nullable
+        private final ByteBuffer to;
+        private final boolean descending;
+        private Iterator<Map.Entry<ByteBuffer, Value>> entries;
+        private Map.Entry<ByteBuffer, Value> current;
+
+        EntryCursor(@NotNull final ByteBuffer from,
+                    @Nullable final ByteBuffer to,
+                    final boolean descending) {
+            this.from = from;
+            this.to = to;
+            this.descending = descending;
+        }
+
+        @Override
+        public void seek(@NotNull final ByteBuffer point) {
+            if (descending) {
+                seekBefore(to == null || point.compareTo(to) < 0 ? point : to);
+                return;
+            }
+            entries = map.tailMap(point.compareTo(from) < 0 ? from : point).entrySet().iterator();
+            next();
+        }
+
+        // на последнюю запись с ключом меньше bound; null -- на последнюю запись таблицы
+        void seekBefore(@Nullable final ByteBuffer bound) {
+            final NavigableMap<ByteBuffer, Value> head = bound == null ? map : map.headMap(bound, false);
+            entries = head.descendingMap().entrySet().iterator();
+            next();
+        }
+
+        @Override
+        public boolean isValid() {
+            return current != null;
+        }
+
+        @Override
+        public void next() {
+            current = entries.hasNext() ? entries.next() : null;
+            if (current != null && outOfRange(current.getKey())) {
+                current = null;
+            }
+        }
+
+        // ключи идут по порядку, так что за границей диапазона дальше ничего нет
+        private boolean outOfRange(@NotNull final ByteBuffer key) {
+            return descending ? key.compareTo(from) < 0 : to != null && key.compareTo(to) >= 0;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer keyView() {
+            return current.getKey();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer valueView() {
+            assert !current.getValue().wasRemoved();
+            return current.getValue().data();
+        }
+
+        @Override
+        public long timestamp() {
+            return current.getValue().getTimeStamp();
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return current.getValue().wasRemoved();
         }
     }
 }
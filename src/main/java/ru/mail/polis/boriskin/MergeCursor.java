@@ -0,0 +1,185 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Мердж отсортированных по ключу таблиц за один проход:
+ * из ячеек с одинаковым ключом остается только самая свежая версия,
+ * а если это могилка, то при необходимости ({@link TombstoneFilter}) пропускается и она.
+ * Заменяет связку mergeSorted + collapseEquals + filter:
+ * курсоры таблиц лежат в двоичной куче, ключи сравниваются на месте, без копий буферов,
+ * и на каждую ячейку не создается ни промежуточных итераторов, ни ячеек.
+ */
+final class MergeCursor implements Cursor {
+    private final Cursor[] cursors;
+    // куча курсоров по текущей ячейке: наверху наименьший ключ (в порядке убывания -- наибольший),
+    // а при равных ключах -- самая свежая версия
+    private final Cursor[] heap;
+    private int size;
+    private final TombstoneFilter tombstones;
+    private final boolean descending;
+
+    // копия ключа, версии которого пропускаются: представление ключа сдвинутого курсора уже недействительно
+    private byte[] skipped = new byte[32];
+    private int skippedLength;
+
+    /**
+     * Мердж таблиц.
+     *
+     * @param cursors курсоры таблиц, уже стоящие на первой нужной ячейке
+     * @param skipTombstones пропускать ли ключи, самая свежая версия которых -- могилка
+     * @param descending курсоры идут в порядке убывания ключей
+     */
+    MergeCursor(@NotNull final List<Cursor> cursors,
+                final boolean skipTombstones,
+                final boolean descending) throws IOException {
+        this(cursors, skipTombstones ? TombstoneFilter.ALL : TombstoneFilter.NONE, descending);
+    }
+
+    /**
+     * Мердж таблиц.
+     *
+     * @param cursors курсоры таблиц, уже стоящие на первой нужной ячейке
+     * @param tombstones какие ключи, самая свежая версия которых -- могилка, пропускать
+     * @param descending курсоры идут в порядке убывания ключей
+     */
+    MergeCursor(@NotNull final List<Cursor> cursors,
+                @NotNull final TombstoneFilter tombstones,
+                final boolean descending) throws IOException {
+        this.cursors = cursors.toArray(new Cursor[0]);
+        this.heap = new Cursor[this.cursors.length];
+        this.tombstones = tombstones;
+        this.descending = descending;
+        build();
+    }
+
+    @Override
+    public void seek(@NotNull final ByteBuffer point) throws IOException {
+        for (final Cursor cursor : cursors) {
+            cursor.seek(point);
+        }
+        build();
+    }
+
+    @Override
+    public boolean isValid() {
+        return size > 0;
+    }
+
+    @Override
+    public void next() throws IOException {
+        skipKey();
+        settle();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer keyView() {
+        return heap[0].keyView();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer valueView() {
+        return heap[0].valueView();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer value() {
+        return heap[0].value();
+    }
+
+    @Override
+    public long timestamp() {
+        return heap[0].timestamp();
+    }
+
+    @Override
+    public boolean isTombstone() {
+        return heap[0].isTombstone();
+    }
+
+    private void build() throws IOException {
+        size = 0;
+        for (final Cursor cursor : cursors) {
+            if (cursor.isValid()) {
+                heap[size++] = cursor;
+            }
+        }
+        Arrays.fill(heap, size, heap.length, null);
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        settle();
+    }
+
+    // может быть "живое" значение, а может быть, что значение по ключу удалили в момент времени Time Stamp
+    private void settle() throws IOException {
+        while (tombstones != TombstoneFilter.NONE && size > 0 && heap[0].isTombstone()
+                && tombstones.canDrop(heap[0].keyView(), heap[0].timestamp())) {
+            skipKey();
+        }
+    }
+
+    // сдвигает все курсоры, стоящие на ключе с вершины: более старые версии лежат в куче сразу под самой свежей
+    private void skipKey() throws IOException {
+        final ByteBuffer key = heap[0].keyView();
+        skippedLength = key.remaining();
+        if (skipped.length < skippedLength) {
+            skipped = new byte[Math.max(skipped.length * 2, skippedLength)];
+        }
+        final int keyPosition = key.position();
+        for (int i = 0; i < skippedLength; i++) {
+            skipped[i] = key.get(keyPosition + i);
+        }
+
+        do {
+            pollTop();
+        } while (size > 0 && Bytes.compare(skipped, skippedLength, heap[0].keyView()) == 0);
+    }
+
+    // курсор на вершине переходит к следующей ячейке или уходит из кучи
+    private void pollTop() throws IOException {
+        final Cursor top = heap[0];
+        top.next();
+        if (!top.isValid()) {
+            heap[0] = heap[--size];
+            heap[size] = null;
+        }
+        siftDown(0);
+    }
+
+    private void siftDown(final int from) {
+        final Cursor cursor = heap[from];
+        int i = from;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!less(heap[child], cursor)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = cursor;
+    }
+
+    private boolean less(@NotNull final Cursor a, @NotNull final Cursor b) {
+        final int cmp = a.keyView().compareTo(b.keyView());
+        if (cmp != 0) {
+            return descending ? cmp > 0 : cmp < 0;
+        }
+        return a.timestamp() > b.timestamp();
+    }
+}
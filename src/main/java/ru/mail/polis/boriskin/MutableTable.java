@@ -0,0 +1,32 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Таблица в памяти, в которую пишет {@link NewDAO}: {@link MemTable} в куче или {@link ArenaMemTable} вне ее.
+ */
+interface MutableTable extends Table {
+
+    /**
+     * Кладет значение с уже назначенной версией.
+     * Как и при мердже таблиц, побеждает более свежая версия,
+     * поэтому порядок одновременных вызовов (и проигрывания write-ahead log'а) не важен.
+     *
+     * @param key ключ
+     * @param val значение или могилка
+     */
+    void put(@NotNull ByteBuffer key, @NotNull Value val);
+
+    /**
+     * Закрепляет таблицу за читателем: ее память не освобождается до парного {@link #release()}.
+     * Одну ссылку держит с самого создания набор таблиц {@link NewDAO}, пока таблица в нем.
+     *
+     * @return false, если все ссылки уже отпущены и память таблицы освобождена
+     */
+    boolean tryRetain();
+
+    // отпускает ссылку; после последней таблицу больше нельзя читать
+    void release();
+}
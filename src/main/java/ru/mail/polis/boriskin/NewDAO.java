@@ -1,24 +1,57 @@
 package ru.mail.polis.boriskin;
 
-import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import static java.nio.file.FileVisitResult.CONTINUE;
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
@@ -32,20 +65,70 @@ public final class NewDAO implements DAO {
 
     private static final Logger log = LoggerFactory.getLogger(NewDAO.class);
 
-    private final int maxSSTableCollectionThreshold;
+    // больше таблиц на диске -- сжимаем все, даже если стратегия не предлагает ничего
+    private final int maxTableCount;
 
     private final File base;
-    private final long maxHeapThreshold;
+    // при каком размере MemTable сбрасывается на диск
+    private final FlushThreshold flushThreshold;
+    // как записывать новые SSTable'ы
+    private final TableOptions tableOptions;
+    private final BlockCache blockCache;
+    // slab'ы сброшенных MemTable'ов вне кучи для новых
+    private final SlabPool slabPool;
 
-    private Table memTable;
-    private final Collection<SortedStringTable> ssTableCollection;
+    // текущий MemTable, замороженные MemTable'ы и SSTable'ы на диске;
+    // читатели берут слепок без блокировок
+    private final AtomicReference<TableSet> tableSet;
+    // итераторы и снимки закрепляют SSTable'ы своего слепка, а compaction выводит таблицы из набора;
+    // под этим lock'ом то и другое не пересекается, так что закрепить удаленную таблицу нельзя
+    private final Object retainLock = new Object();
+    // выведенные из набора таблицы, которые еще читает кто-то из итераторов или снимков
+    private final Set<SortedStringTable> retired = ConcurrentHashMap.newKeySet();
+    // журнал изменений набора SSTable'ов
+    private final Manifest manifest;
+    // пишущие потоки меняют MemTable под read lock'ом (одновременно друг с другом),
+    // а заморозка MemTable'а берет write lock, чтобы в замороженную таблицу никто не дописывал
+    private final ReadWriteLock memTableLock = new ReentrantReadWriteLock();
+    // пакет записей кладется в MemTable под write lock'ом, а точечный поиск в памяти проверяет,
+    // не пересекся ли он с пакетом, -- так пакет виден целиком или не виден вовсе
+    private final StampedLock batchLock = new StampedLock();
+    // одновременно выполняется не более одного compaction'а
+    private final Lock compactionLock = new ReentrantLock();
+    // что сжимать в фоне после очередного сброса
+    private final CompactionStrategy compactionStrategy;
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    // потоки, сжимающие диапазоны ключей одного compaction'а
+    private final int compactionThreads;
+    private final ExecutorService compactionWorkers;
+    // сколько миллисекунд могилки не выбрасываются
+    private final long tombstoneGracePeriod;
+    // с какой доли могилок таблица сжимается ради них
+    private final double tombstoneCompactionRatio;
 
-    // счетчик поколений
-    private int gen;
+    // замороженные MemTable'ы сбрасываются на диск отдельным потоком
+    private final BlockingQueue<FlushTask> flushQueue = new LinkedBlockingQueue<>();
+    // разрешения на заморозку MemTable'а (backpressure для пишущих потоков)
+    private final Semaphore flushPermits;
+    private final Thread flusher;
+    private volatile IOException flushFailure;
+
+    // все изменения MemTable'а сначала попадают в лог
+    private final WriteAheadLog wal;
 
     private static final String NAME = "SortedStringTABLE";
     private static final String DB = ".db";
     private static final String TEMP = ".tmp";
+    // меньше блоков на поток -- дешевле сжать в одном потоке, чем делить
+    private static final int MIN_PARTITION_BLOCKS = 256;
+    // открытие таблиц упирается в задержки чтения с диска, а не в процессор
+    private static final int OPEN_THREADS = 16;
+    // загружаемые данные и результат полного compaction'а режутся на таблицы по 256 MB:
+    // compaction может брать их по частям, а писатель таблицы держит в памяти хеши всех ее ключей
+    private static final long MAX_TABLE_SIZE = 256L << 20;
+    // отпускает таблицы брошенных недочитанными итераторов
+    private static final Cleaner CLEANER = Cleaner.create();
 
     /**
      * Конструктор {link NewDAO} instance.
@@ -55,14 +138,91 @@ public final class NewDAO implements DAO {
      * @throws IOException обработка получения на вход не того base
      */
     public NewDAO(final File base, final long maxHeapThreshold) throws IOException {
+        this(base, DBOptions.defaults().withMemTableSize(maxHeapThreshold));
+    }
+
+    /**
+     * Конструктор {link NewDAO} instance.
+     *
+     * @param base папка диска, где хранятся данные
+     * @param options порог сброса MemTable'а, очередь на сброс, политика лога, compaction и формат таблиц
+     * @throws IOException обработка получения на вход не того base
+     */
+    public NewDAO(final File base, @NotNull final DBOptions options) throws IOException {
         this.base = base;
-        assert maxHeapThreshold >= 0L;
-        this.maxHeapThreshold = maxHeapThreshold;
+        // в памяти может оказаться текущий MemTable и все ожидающие сброса
+        this.flushThreshold = new FlushThreshold(options.getMemTableSize(), options.getMaxMemTableSize(),
+                options.getMaxFlushQueueSize() + 1);
+        this.flushPermits = new Semaphore(options.getMaxFlushQueueSize());
 
-        this.maxSSTableCollectionThreshold = 64;
+        this.maxTableCount = options.getMaxTableCount();
+        this.compactionStrategy = options.getCompactionStrategy();
+        this.tableOptions = options.getTableOptions();
+        this.compactionThreads = options.getCompactionThreads();
+        this.tombstoneGracePeriod = options.getTombstoneGracePeriod();
+        this.tombstoneCompactionRatio = options.getTombstoneCompactionRatio();
+        this.blockCache = new BlockCache(tableOptions.getBlockCacheSize());
+        final long offHeapMemTables = options.getOffHeapMemTableSize();
+        final long maxDirectMemory = Arena.maxDirectMemory();
+        if (offHeapMemTables > maxDirectMemory) {
+            throw new IllegalArgumentException("MemTable'ы вне кучи могут занять " + offHeapMemTables
+                    + " байт, а -XX:MaxDirectMemorySize -- " + maxDirectMemory);
+        }
+        this.slabPool = new SlabPool(offHeapMemTables);
+
+        // сначала проигрываем то, что не успело попасть в SSTable'ы до падения
+        final MutableTable memTable = newMemTable();
+        this.wal = WriteAheadLog.open(base, options.getSyncPolicy(), memTable);
 
-        memTable = new MemTable();
-        ssTableCollection = new ArrayList<>();
+        // по манифесту таблицы заводятся без чтения файлов: каждая откроется при первом обращении
+        final Manifest existing = Manifest.read(base);
+        final NavigableMap<Integer, SortedStringTable> ssTables = new TreeMap<>();
+        final int gen;
+        if (existing == null) {
+            ssTables.putAll(openTables(findTables()));
+            gen = ssTables.isEmpty() ? 0 : ssTables.lastKey() + 1;
+            this.manifest = Manifest.create(base, gen, ssTables);
+        } else {
+            for (final Map.Entry<Integer, TableSummary> entry : existing.getTables().entrySet()) {
+                final int generation = entry.getKey();
+                ssTables.put(generation, new SortedStringTable(tableFile(generation), generation, blockCache,
+                        tableOptions.getMappedSegmentSize(), entry.getValue()));
+            }
+            gen = existing.getNextGeneration();
+            this.manifest = existing;
+        }
+        this.tableSet = new AtomicReference<>(TableSet.of(memTable, ssTables, gen));
+
+        this.flusher = new Thread(this::flushLoop, "flusher-" + base.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "compactor-" + base.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger workers = new AtomicInteger();
+        this.compactionWorkers = Executors.newFixedThreadPool(compactionThreads, r -> {
+            final Thread thread = new Thread(r, "compaction-" + base.getName() + "-" + workers.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (existing != null) {
+            final Set<Integer> live = new HashSet<>(ssTables.keySet());
+            compactor.execute(() -> removeObsoleteFiles(live, gen));
+        }
+        // таблицы, накопившиеся к прошлому запуску, тоже могут требовать сжатия
+        scheduleCompaction();
+    }
+
+    /**
+     * Ищет SSTable'ы в папке -- для данных, записанных до появления манифеста.
+     *
+     * @return файлы таблиц по поколению
+     */
+    private NavigableMap<Integer, File> findTables() throws IOException {
+        final NavigableMap<Integer, File> files = new TreeMap<>();
 
         /*
           Сканируем иерархию в папке с целью понять, что там лежат SSTable'ы.
@@ -94,151 +254,1164 @@ public final class NewDAO implements DAO {
                 new SimpleFileVisitor<>() {
            @Override
            public FileVisitResult visitFile(final Path path,
-                                            final BasicFileAttributes attributes) throws IOException {
-               if (path.toFile().isFile() && path.getFileName().toString().endsWith(DB)
-                       && path.getFileName().toString().startsWith(NAME)) {
-                   ssTableCollection.add(new SortedStringTable(path.toFile()));
-                   // более свежая версия из того, что лежит на диске
-                   gen = Math.max(gen, getGeneration(path.toFile().getName()));
+                                            final BasicFileAttributes attributes) {
+               final String name = path.getFileName().toString();
+               if (path.toFile().isFile() && name.endsWith(DB) && name.startsWith(NAME)) {
+                   final int generation = getGeneration(name, DB);
+                   if (generation >= 0) {
+                       files.put(generation, path.toFile());
+                   }
                }
 
                return CONTINUE;
            }
         });
+        return files;
     }
 
+    /**
+     * Открывает таблицы в несколько потоков: у каждой читаются метаданные и индекс.
+     *
+     * @param files файлы таблиц по поколению
+     * @return таблицы по поколению
+     */
+    private NavigableMap<Integer, SortedStringTable> openTables(
+            @NotNull final NavigableMap<Integer, File> files) throws IOException {
+        final NavigableMap<Integer, SortedStringTable> ssTables = new TreeMap<>();
+        if (files.isEmpty()) {
+            return ssTables;
+        }
+
+        final AtomicInteger openers = new AtomicInteger();
+        final ExecutorService opener = Executors.newFixedThreadPool(
+                Math.min(files.size(), OPEN_THREADS), r -> {
+                    final Thread thread = new Thread(r, "opener-" + base.getName() + "-" + openers.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            final Map<Integer, Future<SortedStringTable>> futures = new TreeMap<>();
+            for (final Map.Entry<Integer, File> entry : files.entrySet()) {
+                futures.put(entry.getKey(), opener.submit(() -> openTable(entry.getValue(), entry.getKey())));
+            }
+            for (final Map.Entry<Integer, Future<SortedStringTable>> entry : futures.entrySet()) {
+                try {
+                    ssTables.put(entry.getKey(), Uninterruptibles.getUninterruptibly(entry.getValue()));
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException("Не удалось открыть таблицу поколения " + entry.getKey(), e.getCause());
+                }
+            }
+        } finally {
+            opener.shutdownNow();
+        }
+        log.info("Открыто таблиц: {}", ssTables.size());
+        return ssTables;
+    }
+
+    // счетчики попаданий и промахов общего кэша блоков
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Итератор закрепляет SSTable'ы, так что compaction не удаляет файлы, которые он читает.
+     * Таблицы отпускаются, когда записи кончились, а у брошенного недочитанным итератора --
+     * после того, как его соберет сборщик мусора.
+     */
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer point) throws IOException {
+        return records(point, null, false);
+    }
+
+    /**
+     * Границы диапазона проверяет каждая таблица, так что обход не читает блоков за ними,
+     * а таблицы, в которых нет ключей из диапазона, не читает вовсе.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull final ByteBuffer from,
+                                  @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return records(from, to, false);
+    }
+
+    /**
+     * Записи с ключами из [from, to) в порядке <b>убывания</b> ключей.
+     * Например, последние N записей перед ключом key -- это первые N записей
+     * {@code descendingRange(ByteBuffer.allocate(0), key)}.
+     *
+     * @param from нижняя граница (включительно)
+     * @param to верхняя граница (не включительно); null -- с последнего ключа
+     */
+    @NotNull
+    public Iterator<Record> descendingRange(@NotNull final ByteBuffer from,
+                                            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return records(from, to, true);
+    }
+
+    private Iterator<Record> records(@NotNull final ByteBuffer from,
+                                     @Nullable final ByteBuffer to,
+                                     final boolean descending) throws IOException {
+        final TableSet snapshot = retainTables(true);
+        final Cursor cursor;
+        try {
+            cursor = mergedCursor(snapshot, from, to, descending);
+        } catch (IOException | RuntimeException ex) {
+            releaseTables(snapshot);
+            throw ex;
+        }
 
         // после мерджа ячеек разных таблиц,
         // при возвращении итератора пользователю:
-        // в этот момент превращает их в рекорды (transform)
-        return Iterators.transform(iterateThroughTableCells(point),
-                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+        // только в этот момент ячейки превращаются в рекорды
+        return new PinnedRecords(Cursors.records(cursor), () -> releaseTables(snapshot));
     }
 
-    private Iterator<TableCell> iterateThroughTableCells(@NotNull final ByteBuffer point) throws IOException {
-        final Collection<Iterator<TableCell>> filesIterator = new ArrayList<>();
+    /**
+     * Снимок данных: все изменения, завершенные до его создания, и ничего из того, что пишется потом.
+     * Непустой MemTable при этом замораживается, чтобы в снимке остались только неизменяемые таблицы,
+     * а SSTable'ы снимка закрепляются до его закрытия: compaction их не удаляет.
+     * Замороженные MemTable'ы тоже закрепляются: пока снимок открыт, память вне кучи сброшенных из них
+     * не переходит к новым MemTable'ам.
+     * Закрепить сам MemTable и отсекать в нем ячейки новее снимка нельзя: MemTable хранит
+     * только последнюю версию ключа, и перезапись после снимка потеряла бы ту, что видна снимку.
+     * Поэтому каждый снимок после записей стоит сброса маленькой таблицы, а при полной очереди на сброс
+     * ждет места в ней. На порог сброса такие заморозки не влияют.
+     * Снимок нужно закрыть; незакрытые к {@link #close()} снимки читать больше нельзя.
+     */
+    @NotNull
+    public Snapshot snapshot() throws IOException {
+        acquireFlushPermit();
 
-        for (final SortedStringTable sortedStringTable : ssTableCollection) {
-            filesIterator.add(sortedStringTable.iterator(point));
+        final TableSet snapshot;
+        final long timeStamp;
+        memTableLock.writeLock().lock();
+        try {
+            if (tableSet.get().mem.getSize() == 0) {
+                flushPermits.release();
+            } else {
+                freeze(false);
+            }
+            // все версии снимка старше этой: новые записи ждали write lock'а
+            timeStamp = Utils.getTime();
+            snapshot = retainTables(false);
+        } finally {
+            memTableLock.writeLock().unlock();
         }
 
-        filesIterator.add(memTable.iterator(point));
-        // итератор мерджит разные потоки и выбирает самое актуальное значение
-        final Iterator<TableCell> cells = Iters.collapseEquals(
-                Iterators.mergeSorted(filesIterator, TableCell.COMPARATOR),
-                TableCell::getKey);
-        // может быть "живое" значение, а может быть, что значение по ключу удалили в момент времени Time Stamp
-        return Iterators.filter(cells,
-                cell -> !cell.getValue().wasRemoved());
+        return new Snapshot(snapshot, timeStamp, () -> releaseTables(snapshot));
     }
 
-    // вставить-обновить
+    /**
+     * Слепок набора таблиц с закрепленными SSTable'ами и MemTable'ами.
+     *
+     * @param withMemTable закрепить и текущий MemTable; иначе в слепке его нет
+     * @return слепок, который нужно отпустить {@link #releaseTables(TableSet)}
+     */
+    private TableSet retainTables(final boolean withMemTable) {
+        synchronized (retainLock) {
+            final TableSet snapshot = retainMemTables(withMemTable);
+            for (final SortedStringTable sortedStringTable : snapshot.ssTables.values()) {
+                sortedStringTable.retain();
+            }
+            return snapshot;
+        }
+    }
+
+    private void releaseTables(@NotNull final TableSet snapshot) {
+        releaseMemTables(snapshot);
+        releaseTables(snapshot.ssTables.values());
+    }
+
+    /**
+     * Слепок набора таблиц с закрепленными MemTable'ами -- без общего lock'а, чтобы не мешать точечным чтениям.
+     * Если MemTable слепка уже сброшен на диск и отпущен, в свежем наборе вместо него SSTable.
+     *
+     * @param withMemTable закрепить и текущий MemTable; иначе в слепке его нет
+     * @return слепок, который нужно отпустить {@link #releaseMemTables(TableSet)}
+     */
+    private TableSet retainMemTables(final boolean withMemTable) {
+        while (true) {
+            final TableSet current = tableSet.get();
+            final TableSet snapshot = withMemTable ? current : current.withoutMemTable();
+            if (tryRetain(snapshot)) {
+                return snapshot;
+            }
+        }
+    }
+
+    // закрепляет все MemTable'ы слепка или ни одного
+    private static boolean tryRetain(@NotNull final TableSet snapshot) {
+        if (!snapshot.mem.tryRetain()) {
+            return false;
+        }
+        for (final Map.Entry<Integer, MutableTable> flushing : snapshot.flushing.entrySet()) {
+            if (!flushing.getValue().tryRetain()) {
+                snapshot.mem.release();
+                for (final MutableTable retained : snapshot.flushing.headMap(flushing.getKey()).values()) {
+                    retained.release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void releaseMemTables(@NotNull final TableSet snapshot) {
+        snapshot.mem.release();
+        for (final MutableTable flushing : snapshot.flushing.values()) {
+            flushing.release();
+        }
+    }
+
+    private void releaseTables(@NotNull final Collection<SortedStringTable> tables) {
+        for (final SortedStringTable sortedStringTable : tables) {
+            try {
+                if (sortedStringTable.release()) {
+                    retired.remove(sortedStringTable);
+                }
+            } catch (UncheckedIOException ex) {
+                log.warn("Не удалось удалить: " + ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Точечный поиск без мерджа итераторов всех таблиц.
+     * Сначала смотрим в памяти, где обычно лежат самые свежие версии,
+     * затем в SSTable'ах от новых поколений к старым,
+     * пропуская таблицы, которые по bloom filter'у или по версиям не могут дать более свежей ячейки
+     * (загруженная в обход MemTable'а таблица бывает свежее него).
+     * По дороге не создается ни итераторов, ни ячеек.
+     */
+    @NotNull
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer val) throws IOException {
-        memTable.upsert(key, val);
-        // когда размер таблицы достигает порога,
-        // сбрасываем данную таблицу на диск,
-        // где она хранится в бинарном сериализованном виде
-        if (memTable.getSize() >= maxHeapThreshold) {
-            flush();
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        // MemTable'ы отдают копии значений, так что закреплять их нужно только на время поиска
+        final TableSet snapshot = retainMemTables(true);
+        Value found;
+        try {
+            long stamp = batchLock.tryOptimisticRead();
+            found = getFromMemory(snapshot, key);
+            if (!batchLock.validate(stamp)) {
+                stamp = batchLock.readLock();
+                try {
+                    found = getFromMemory(snapshot, key);
+                } finally {
+                    batchLock.unlockRead(stamp);
+                }
+            }
+        } finally {
+            releaseMemTables(snapshot);
+        }
+
+        return dataOf(getFromDisk(snapshot, key, found));
+    }
+
+    @NotNull
+    static ByteBuffer dataOf(@Nullable final Value found) {
+        if (found == null || found.wasRemoved()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return found.getData();
+    }
+
+    // самая свежая из уже найденной в памяти версии и версий ключа в SSTable'ах
+    @Nullable
+    static Value getFromDisk(@NotNull final TableSet snapshot,
+                             @NotNull final ByteBuffer key,
+                             @Nullable final Value fromMemory) throws IOException {
+        Value found = fromMemory;
+        final long keyHash = BloomFilter.hash(key);
+        for (final SortedStringTable sortedStringTable : snapshot.ssTables.descendingMap().values()) {
+            // после compaction'а номер поколения не гарантирует свежести данных,
+            // а максимальная версия в таблице -- гарантирует
+            if (found != null && sortedStringTable.getMaxTimeStamp() <= found.getTimeStamp()) {
+                continue;
+            }
+            final Value candidate = sortedStringTable.get(key, keyHash);
+            if (candidate != null && (found == null || candidate.getTimeStamp() > found.getTimeStamp())) {
+                found = candidate;
+            }
+        }
+        return found;
+    }
+
+    @Nullable
+    static Value getFromMemory(@NotNull final TableSet snapshot,
+                                       @NotNull final ByteBuffer key) throws IOException {
+        final Value value = snapshot.mem.get(key);
+        if (value != null) {
+            return value;
+        }
+        for (final Table flushing : snapshot.flushing.descendingMap().values()) {
+            final Value found = flushing.get(key);
+            if (found != null) {
+                return found;
+            }
         }
+        return null;
+    }
+
+    // ячейки всех таблиц с ключами из [from, to); to == null -- до конца
+    static Cursor mergedCursor(@NotNull final TableSet snapshot,
+                               @NotNull final ByteBuffer from,
+                               @Nullable final ByteBuffer to,
+                               final boolean descending) throws IOException {
+        final List<Cursor> cursors = new ArrayList<>();
 
-        if (ssTableCollection.size() > maxSSTableCollectionThreshold) {
-            compact();
+        for (final SortedStringTable sortedStringTable : snapshot.ssTables.values()) {
+            // таблицы, ключи которых по сводке не пересекаются с [from, to), не участвуют в мердже
+            if (sortedStringTable.intersects(from, to)) {
+                cursors.add(sortedStringTable.cursor(from, to, descending));
+            }
         }
+
+        // замороженные таблицы видны читателям, пока их не сбросили на диск
+        for (final Table flushing : snapshot.flushing.values()) {
+            cursors.add(flushing.cursor(from, to, descending));
+        }
+
+        cursors.add(snapshot.mem.cursor(from, to, descending));
+        // курсор мерджит разные таблицы, выбирает самое актуальное значение и пропускает могилки
+        return new MergeCursor(cursors, true, descending);
+    }
+
+    // вставить-обновить
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer val) throws IOException {
+        apply(key, Value.valueOf(val));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        // сбрасываем таблицу на диск
-        if (memTable.getSize() >= maxHeapThreshold) {
-            flush();
+        // сохраняем могилку
+        apply(key, Value.tombstone());
+    }
+
+    private void apply(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        final long seq;
+        final long size;
+        memTableLock.readLock().lock();
+        try {
+            // сначала в лог, потом в MemTable: лог и MemTable меняются вместе под одним lock'ом
+            seq = wal.append(key, value);
+            final MutableTable memTable = tableSet.get().mem;
+            memTable.put(key, value);
+            size = memTable.getSize();
+        } finally {
+            memTableLock.readLock().unlock();
+        }
+        commit(seq, size);
+    }
+
+    /**
+     * Пакет изменений: одна запись в логе, одна проверка порога сброса,
+     * и все изменения попадают в один MemTable с версиями подряд.
+     * Точечный поиск видит пакет целиком или не видит вовсе;
+     * итераторы, как и для отдельных upsert'ов, видят только то, что записано до их создания,
+     * а то, что пишется во время обхода, -- как получится.
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final ByteBuffer[] keys = new ByteBuffer[batch.size()];
+        final Value[] values = new Value[batch.size()];
+        // версии идут в порядке изменений, так что из изменений одного ключа побеждает последнее
+        final long first = Utils.getTimes(batch.size());
+        batch.forEach(new WriteBatch.Handler() {
+            private int i;
+
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+                keys[i] = key;
+                values[i] = new Value(first + i, value);
+                i++;
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) {
+                keys[i] = key;
+                values[i] = new Value(first + i, null);
+                i++;
+            }
+        });
+
+        final long seq;
+        final long size;
+        memTableLock.readLock().lock();
+        try {
+            seq = wal.append(keys, values);
+            final MutableTable memTable = tableSet.get().mem;
+            final long stamp = batchLock.writeLock();
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    memTable.put(keys[i], values[i]);
+                }
+            } finally {
+                batchLock.unlockWrite(stamp);
+            }
+            size = memTable.getSize();
+        } finally {
+            memTableLock.readLock().unlock();
         }
+        commit(seq, size);
+    }
+
+    private void commit(final long seq, final long size) throws IOException {
+        // fsync (если нужен) делаем уже без lock'а, заодно за соседние потоки
+        wal.sync(seq);
 
-        if (ssTableCollection.size() > maxSSTableCollectionThreshold) {
-            compact();
+        // когда размер таблицы достигает порога,
+        // отдаем данную таблицу на сброс на диск,
+        // где она хранится в бинарном сериализованном виде
+        if (size >= flushThreshold.get()) {
+            scheduleFlush(false);
         }
     }
 
     @Override
     public void close() throws IOException {
         // сохранить все, что мы не сохранили
-        if (memTable.getSize() > 0) {
-            flush();
+        scheduleFlush(true);
+
+        enqueue(FlushTask.POISON_PILL);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Прервано ожидание сброса таблиц", e);
+        }
+
+        // начатый compaction доводим до конца, новых не начинаем
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Прервано ожидание compaction'а", e);
+        }
+        // compaction'ов больше не будет, а значит, и диапазонов для сжатия
+        compactionWorkers.shutdown();
+
+        // иначе после перезапуска замененные compaction'ом таблицы снова оказались бы в наборе
+        for (final SortedStringTable sortedStringTable : retired) {
+            log.warn("Таблица {} удаляется, хотя ее еще читают", sortedStringTable.getTable());
+            Files.deleteIfExists(sortedStringTable.getTable().toPath());
+        }
+
+        wal.close();
+        manifest.close();
+        log.info("Кэш блоков {}: {}", base, blockCache);
+
+        if (flushFailure != null) {
+            throw flushFailure;
+        }
+    }
+
+    /**
+     * Замораживает текущий MemTable и ставит его в очередь на сброс.
+     * Блокируется, если в очереди уже лежит предельное число таблиц.
+     *
+     * @param force сбросить любой непустой MemTable, даже если порог еще не достигнут
+     */
+    private void scheduleFlush(final boolean force) throws IOException {
+        acquireFlushPermit();
+
+        memTableLock.writeLock().lock();
+        try {
+            // порог могли заметить сразу несколько пишущих потоков,
+            // но замораживает таблицу только первый из них
+            final long size = tableSet.get().mem.getSize();
+            if (size == 0 || !force && size < flushThreshold.get()) {
+                flushPermits.release();
+                return;
+            }
+            // принудительно сбрасывается MemTable, не заполненный до порога
+            freeze(!force);
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
+    }
+
+    private void acquireFlushPermit() throws IOException {
+        try {
+            flushPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Прервано ожидание места в очереди на сброс", e);
+        }
+    }
+
+    /*
+     * guarded by memTableLock.writeLock(); разрешение на заморозку уже получено.
+     * full -- MemTable заполнен до порога; только по таким заморозкам видно, как быстро идет запись,
+     * а заморозки снимков и закрытия подстроили бы порог под частоту снимков.
+     */
+    private void freeze(final boolean full) throws IOException {
+        // новый MemTable пишет в новый сегмент лога
+        final int segment = wal.rotate();
+        final MutableTable empty = newMemTable();
+        final TableSet prev = tableSet.getAndUpdate(current -> current.markAsFlushing(empty));
+        if (full) {
+            flushThreshold.onFreeze();
+        }
+        enqueue(new FlushTask(prev.gen, prev.mem, segment, null));
+    }
+
+    private MutableTable newMemTable() {
+        return tableOptions.isOffHeapMemTable() ? new ArenaMemTable(slabPool) : new MemTable();
+    }
+
+    private void enqueue(@NotNull final FlushTask task) throws IOException {
+        try {
+            flushQueue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Прервана постановка таблицы в очередь на сброс", e);
+        }
+    }
+
+    // дожидаемся, пока все замороженные на данный момент таблицы окажутся на диске
+    private void awaitFlushed() throws IOException {
+        final CountDownLatch barrier = new CountDownLatch(1);
+        enqueue(new FlushTask(-1, null, -1, barrier));
+        try {
+            barrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Прервано ожидание сброса таблиц", e);
         }
     }
 
-    private void flush() throws IOException {
+    private void flushLoop() {
+        while (true) {
+            final FlushTask task;
+            try {
+                task = flushQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (task == FlushTask.POISON_PILL) {
+                return;
+            }
+
+            if (task.barrier != null) {
+                task.barrier.countDown();
+                continue;
+            }
+
+            try {
+                flush(task.gen, task.table);
+                // после неудачного сброса лог нельзя обрезать:
+                // в нем лежат и данные не сброшенной таблицы
+                if (flushFailure == null) {
+                    wal.truncate(task.walSegment);
+                }
+                scheduleCompaction();
+            } catch (IOException ex) {
+                // таблица остается замороженной в памяти и по-прежнему видна читателям
+                log.error("Не удалось сбросить таблицу поколения " + task.gen, ex);
+                flushFailure = ex;
+            } finally {
+                flushPermits.release();
+            }
+        }
+    }
+
+    private void flush(final int gen, @NotNull final MutableTable table) throws IOException {
+        final File dest = writeTable(gen, table.cursor(ByteBuffer.allocate(0)), 0);
+        syncDirectory(base);
+
+        // заменяем замороженный MemTable на SSTable
+        final SortedStringTable ssTable = openTable(dest, gen);
+        tableSet.updateAndGet(current -> current.moveToFlushed(gen, ssTable));
+        // новые слепки его уже не видят, а память отдается, как только отпустят прежние
+        table.release();
+        // пока таблицы нет в манифесте, ее данные восстанавливаются из лога
+        logEdit(Collections.singletonMap(gen, ssTable), Collections.emptyList());
+        // таким образом, на диске копятся SSTable'ы + есть пустой-непустой MemTable в памяти
+    }
+
+    private File writeTable(final int gen,
+                            @NotNull final Cursor cells,
+                            final int level) throws IOException {
         // в начале нужно писать во временный файл
         final File temp = new File(base, NAME + gen + TEMP);
 
+        final long start = System.nanoTime();
         try {
-            SortedStringTable.writeData(
-                    memTable.iterator(ByteBuffer.allocate(0)),
-                    temp);
+            final long written = SortedStringTable.writeData(cells, temp, level, tableOptions);
+            final long micros = Math.max(1L, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            log.debug("Таблица поколения {}: {} байт за {} мс, {} байт/с",
+                    gen, written, micros / 1000, written * 1_000_000L / micros);
         } catch (IOException ex) {
             Files.delete(temp.toPath());
             throwDBStrangeBehaviour();
+        } catch (RuntimeException ex) {
+            // например, записи для загрузки оказались не по порядку
+            Files.deleteIfExists(temp.toPath());
+            throw ex;
         }
 
         // превращаем в постоянный файл
-        final File dest = new File(base, NAME + gen + DB);
+        final File dest = tableFile(gen);
         Files.move(temp.toPath(), dest.toPath(), ATOMIC_MOVE);
+        return dest;
+    }
 
-        ssTableCollection.add(new SortedStringTable(dest));
+    private SortedStringTable openTable(@NotNull final File file, final int gen) throws IOException {
+        return new SortedStringTable(file, gen, blockCache, tableOptions.getMappedSegmentSize());
+    }
 
-        // обновляем счетчик поколений
-        gen++;
-        // заменяем MemTable в памяти на пустой
-        memTable = new MemTable();
-        // таким образом, на диске копятся SSTable'ы + есть пустой-непустой MemTable в памяти
+    private File tableFile(final int gen) {
+        return new File(base, NAME + gen + DB);
+    }
+
+    /**
+     * Записывает в манифест изменение набора SSTable'ов.
+     * Вызывается после каждого изменения набора и до удаления выведенных из него файлов.
+     */
+    private void logEdit(@NotNull final Map<Integer, SortedStringTable> added,
+                         @NotNull final Collection<Integer> removed) throws IOException {
+        // поколения выдаются из набора, так что его счетчик не меньше поколения любой записанной таблицы
+        manifest.logEdit(tableSet.get().gen, added, removed);
+    }
+
+    /**
+     * Удаляет оставшиеся от прошлых запусков файлы таблиц, которых нет в манифесте:
+     * недописанные при падении и замененные compaction'ом, но не успевшие удалиться.
+     * Новые таблицы получают поколения не меньше nextGen, поэтому их это не задевает.
+     */
+    private void removeObsoleteFiles(@NotNull final Set<Integer> live, final int nextGen) {
+        final File[] files = base.listFiles();
+        if (files == null) {
+            log.warn("Не удалось прочитать папку {}", base);
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!file.isFile() || !name.startsWith(NAME)) {
+                continue;
+            }
+            final int generation = name.endsWith(DB) ? getGeneration(name, DB) : getGeneration(name, TEMP);
+            if (generation < 0 || generation >= nextGen || live.contains(generation)) {
+                continue;
+            }
+            try {
+                Files.delete(file.toPath());
+                log.info("Удален файл, которого нет в манифесте: {}", file);
+            } catch (IOException ex) {
+                log.warn("Не удалось удалить файл {}", file, ex);
+            }
+        }
+    }
+
+    // после fsync'а папки переименование файла переживет и падение машины
+    static void syncDirectory(@NotNull final File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // не все платформы позволяют открыть папку на чтение
+            log.debug("Не удалось сделать fsync папки {}: {}", dir, ex.getMessage());
+        }
     }
 
     private void throwDBStrangeBehaviour() throws IOException {
         throw new IOException("БД в странном состоянии");
     }
 
-    private int getGeneration(final String name) {
-        for (int i = 0; i < Math.min(9, name.length()); i++) {
-            if (!Character.isDigit(name.charAt(i))) {
-                return i == 0 ? 0 : Integer.parseInt(name.substring(0, i));
+    // поколение записано в имени файла между префиксом NAME и расширением
+    private static int getGeneration(final String name, final String suffix) {
+        if (!name.endsWith(suffix)) {
+            return -1;
+        }
+        final String gen = name.substring(NAME.length(), name.length() - suffix.length());
+        if (gen.isEmpty() || gen.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < gen.length(); i++) {
+            if (!Character.isDigit(gen.charAt(i))) {
+                return -1;
+            }
+        }
+        return Integer.parseInt(gen);
+    }
+
+    // не больше одного фонового compaction'а в очереди
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactor.execute(this::compactInBackground);
+        } catch (RejectedExecutionException ex) {
+            // DAO уже закрывается
+            compactionScheduled.set(false);
+        }
+    }
+
+    private void compactInBackground() {
+        boolean failed = false;
+        compactionLock.lock();
+        try {
+            // сжимаем, пока стратегии есть что предложить;
+            // после close() доделываем только уже запланированное
+            CompactionTask task = pickCompaction();
+            while (task != null) {
+                log.debug("Compaction: {}", task);
+                compact(task);
+                task = compactor.isShutdown() ? null : pickCompaction();
+            }
+        } catch (IOException ex) {
+            // недописанный результат удален, входные таблицы остались на месте
+            log.error("Фоновый compaction не удался", ex);
+            failed = true;
+        } finally {
+            compactionLock.unlock();
+            compactionScheduled.set(false);
+        }
+
+        // таблица могла сброситься после последнего выбора, но до снятия флага
+        if (!failed && pickCompaction() != null) {
+            scheduleCompaction();
+        }
+    }
+
+    @Nullable
+    private CompactionTask pickCompaction() {
+        final NavigableMap<Integer, SortedStringTable> ssTables = tableSet.get().ssTables;
+        final CompactionTask task = compactionStrategy.pick(ssTables);
+        if (task != null) {
+            return task;
+        }
+        if (ssTables.size() > maxTableCount) {
+            // стратегия не справляется, а таблиц слишком много даже для чтения
+            return fullCompaction(ssTables);
+        }
+        return tombstonePurge(ssTables);
+    }
+
+    /**
+     * Таблица, которую стоит сжать ради могилок: с самой большой долей могилок не меньше заданной,
+     * самая старая из которых пережила grace period и не закрывает версий в других таблицах.
+     * Такую могилку compaction выбросит наверняка, так что таблица не переписывается впустую
+     * и помнить, какие таблицы сжимать бесполезно, не нужно.
+     *
+     * @return задание или null, если таких таблиц нет
+     */
+    @Nullable
+    private CompactionTask tombstonePurge(@NotNull final NavigableMap<Integer, SortedStringTable> ssTables) {
+        final long horizon = tombstoneHorizon();
+        Map.Entry<Integer, SortedStringTable> picked = null;
+        double pickedRatio = tombstoneCompactionRatio;
+        for (final Map.Entry<Integer, SortedStringTable> entry : ssTables.entrySet()) {
+            final TableSummary summary = entry.getValue().getSummary();
+            final double ratio = summary.getTombstoneRatio();
+            final long oldest = summary.getOldestTombstone();
+            // UNKNOWN -- таблица версии 0, и неизвестно, пережили ли могилки grace period
+            if (ratio >= pickedRatio && oldest != TableSummary.UNKNOWN && oldest < horizon
+                    && !overlapsOlder(ssTables, entry.getKey(), summary, oldest)) {
+                picked = entry;
+                pickedRatio = ratio;
+            }
+        }
+        return picked == null ? null : CompactionTask.tombstonePurge(picked.getKey(), picked.getValue().getLevel());
+    }
+
+    // есть ли среди остальных таблиц пересекающаяся по ключам с ячейками старше версии timeStamp
+    private static boolean overlapsOlder(@NotNull final NavigableMap<Integer, SortedStringTable> ssTables,
+                                         final int gen,
+                                         @NotNull final TableSummary summary,
+                                         final long timeStamp) {
+        final ByteBuffer min = summary.getMinKey();
+        final ByteBuffer max = summary.getMaxKey();
+        if (min == null || max == null) {
+            return false;
+        }
+        for (final Map.Entry<Integer, SortedStringTable> entry : ssTables.entrySet()) {
+            if (entry.getKey() == gen) {
+                continue;
+            }
+            final TableSummary other = entry.getValue().getSummary();
+            final ByteBuffer otherMin = other.getMinKey();
+            final ByteBuffer otherMax = other.getMaxKey();
+            // минимальная версия UNKNOWN меньше любой: такая таблица считается старше
+            if (other.getMinTimeStamp() < timeStamp && otherMin != null && otherMax != null
+                    && otherMin.compareTo(max) <= 0 && otherMax.compareTo(min) >= 0) {
+                return true;
             }
         }
-        return -1;
+        return false;
+    }
+
+    // могилки с версией не меньше этой еще в grace period; Long.MAX_VALUE -- grace period нет
+    private long tombstoneHorizon() {
+        return tombstoneGracePeriod == 0
+                ? Long.MAX_VALUE
+                : TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - tombstoneGracePeriod);
+    }
+
+    /**
+     * Какие могилки выбросить при compaction'е.
+     *
+     * @param others таблицы, которые не сжимаются
+     * @param horizon могилки с версией не меньше этой еще в grace period
+     */
+    private static TombstoneFilter tombstoneFilter(@NotNull final CompactionTask task,
+                                                   @NotNull final Collection<SortedStringTable> others,
+                                                   final long horizon) {
+        if (task.isDropTombstones()) {
+            // более старых версий этих ключей нет ни в одной другой таблице
+            return horizon == Long.MAX_VALUE ? TombstoneFilter.ALL : TombstoneFilter.olderThan(horizon);
+        }
+        if (!task.isTombstonePurge()) {
+            return TombstoneFilter.NONE;
+        }
+        return (key, timeStamp) -> timeStamp < horizon && !hasOlderVersion(others, key, timeStamp);
+    }
+
+    // есть ли в таблицах версия ключа старше могилки, которая без нее снова станет видна
+    private static boolean hasOlderVersion(@NotNull final Collection<SortedStringTable> tables,
+                                           @NotNull final ByteBuffer key,
+                                           final long timeStamp) throws IOException {
+        final long keyHash = BloomFilter.hash(key);
+        for (final SortedStringTable sortedStringTable : tables) {
+            final long oldest = sortedStringTable.getSummary().getMinTimeStamp();
+            // все ячейки таблицы свежее могилки: по сводке, без поиска по фильтру и блокам
+            if (oldest != TableSummary.UNKNOWN && oldest > timeStamp) {
+                continue;
+            }
+            final Value found = sortedStringTable.get(key, keyHash);
+            if (found != null && found.getTimeStamp() < timeStamp) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public void compact() throws IOException {
-        gen = 1;
-        final File temp = new File(base, NAME + gen + TEMP);
+        // сжимаем только то, что уже лежит на диске,
+        // поэтому сначала дожидаемся сброса замороженных таблиц
+        awaitFlushed();
 
+        compactionLock.lock();
         try {
-            SortedStringTable.writeData(
-                    iterateThroughTableCells(ByteBuffer.allocate(0)),
-                    temp);
-        } catch (IOException ex) {
-            Files.delete(temp.toPath());
-            throwDBStrangeBehaviour();
+            final NavigableMap<Integer, SortedStringTable> ssTables = tableSet.get().ssTables;
+            if (!ssTables.isEmpty()) {
+                compact(fullCompaction(ssTables));
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    // все таблицы разом: под могилками гарантированно ничего не осталось
+    private static CompactionTask fullCompaction(@NotNull final NavigableMap<Integer, SortedStringTable> ssTables) {
+        int level = 0;
+        for (final SortedStringTable sortedStringTable : ssTables.values()) {
+            level = Math.max(level, sortedStringTable.getLevel());
+        }
+        return new CompactionTask(ssTables.keySet(), level, true, MAX_TABLE_SIZE);
+    }
+
+    // guarded by compactionLock
+    private void compact(@NotNull final CompactionTask task) throws IOException {
+        final NavigableMap<Integer, SortedStringTable> ssTables = tableSet.get().ssTables;
+        final Collection<SortedStringTable> compacted = new ArrayList<>();
+        for (final Integer gen : task.getInputs()) {
+            compacted.add(ssTables.get(gen));
+        }
+        final Collection<SortedStringTable> others = new ArrayList<>();
+        for (final Map.Entry<Integer, SortedStringTable> entry : ssTables.entrySet()) {
+            if (!task.getInputs().contains(entry.getKey())) {
+                others.add(entry.getValue());
+            }
+        }
+        final long horizon = tombstoneHorizon();
+        final TombstoneFilter tombstones = tombstoneFilter(task, others, horizon);
+
+        final List<ByteBuffer> bounds = partition(compacted);
+        final Map<Integer, SortedStringTable> results;
+        if (bounds.isEmpty()) {
+            results = writeCompacted(task, compactedCells(compacted, ByteBuffer.allocate(0), null, tombstones));
+        } else {
+            log.debug("Compaction {} в {} потоков", task, bounds.size() + 1);
+            results = compactInParallel(task, compacted, bounds, tombstones);
+        }
+
+        // сначала появляются новые файлы, и только потом удаляются старые,
+        // чтобы при падении посередине не потерять данные
+        syncDirectory(base);
+        synchronized (retainLock) {
+            tableSet.updateAndGet(current -> current.replaceCompacted(task.getInputs(), results));
+        }
+        // удаление старых таблиц должно лечь в манифест раньше, чем удалятся их файлы;
+        // если записать его не удалось, они остаются на диске до следующего запуска
+        logEdit(results, task.getInputs());
+
+        // файлы, которые еще читают итераторы и снимки, удалит последний из них
+        retired.addAll(compacted);
+        releaseTables(compacted);
+    }
+
+    /**
+     * Делит ключи сжимаемых таблиц на диапазоны примерно одинакового объема по выборке ключей из их индексов.
+     *
+     * @return границы между диапазонами по возрастанию; пусто, если делить не стоит
+     */
+    private List<ByteBuffer> partition(@NotNull final Collection<SortedStringTable> tables) {
+        final List<ByteBuffer> samples = new ArrayList<>();
+        for (final SortedStringTable sortedStringTable : tables) {
+            samples.addAll(sortedStringTable.sampleKeys());
+        }
+        final int partitions = Math.min(compactionThreads, samples.size() / MIN_PARTITION_BLOCKS);
+        if (partitions <= 1) {
+            return Collections.emptyList();
+        }
+
+        Collections.sort(samples);
+        final List<ByteBuffer> bounds = new ArrayList<>(partitions - 1);
+        for (int i = 1; i < partitions; i++) {
+            final ByteBuffer bound = samples.get(i * samples.size() / partitions);
+            // одинаковые ключи из разных таблиц дали бы пустой диапазон
+            if (bounds.isEmpty() || bounds.get(bounds.size() - 1).compareTo(bound) < 0) {
+                bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
+
+    // каждый диапазон сжимается в свои таблицы; при неудаче не остается ни одной из них
+    private Map<Integer, SortedStringTable> compactInParallel(
+            @NotNull final CompactionTask task,
+            @NotNull final Collection<SortedStringTable> compacted,
+            @NotNull final List<ByteBuffer> bounds,
+            @NotNull final TombstoneFilter tombstones) throws IOException {
+        final List<Future<Map<Integer, SortedStringTable>>> futures = new ArrayList<>(bounds.size() + 1);
+        for (int i = 0; i <= bounds.size(); i++) {
+            final ByteBuffer from = i == 0 ? ByteBuffer.allocate(0) : bounds.get(i - 1);
+            final ByteBuffer to = i == bounds.size() ? null : bounds.get(i);
+            futures.add(compactionWorkers.submit(() ->
+                    writeCompacted(task, compactedCells(compacted, from, to, tombstones))));
         }
 
-        for (final SortedStringTable sortedStringTable : ssTableCollection) {
+        // дожидаемся всех диапазонов, даже если какой-то уже не удался, -- иначе нечего будет удалять
+        final Map<Integer, SortedStringTable> results = new TreeMap<>();
+        IOException failure = null;
+        for (final Future<Map<Integer, SortedStringTable>> future : futures) {
             try {
-                Files.delete(sortedStringTable.getTable().toPath());
-            } catch (IOException ex) {
-                log.warn("Не удалось удалить: " + ex);
+                results.putAll(Uninterruptibles.getUninterruptibly(future));
+            } catch (ExecutionException e) {
+                final IOException ex = e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException("Compaction диапазона не удался", e.getCause());
+                if (failure == null) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
             }
         }
+        if (failure != null) {
+            releaseTables(results.values());
+            throw failure;
+        }
+        return results;
+    }
 
-        ssTableCollection.clear();
+    // результат режется на таблицы не больше заданного размера
+    private Map<Integer, SortedStringTable> writeCompacted(
+            @NotNull final CompactionTask task,
+            @NotNull final Cursor cells) throws IOException {
+        return writeTables(cells, task.getMaxOutputSize(), task.getOutputLevel());
+    }
 
-        final File dest = new File(base, NAME + gen + DB);
-        Files.move(temp.toPath(), dest.toPath(), ATOMIC_MOVE);
-        ssTableCollection.add(new SortedStringTable(dest));
+    // таблицы под новыми поколениями; при неудаче не остается ни одной из них
+    private NavigableMap<Integer, SortedStringTable> writeTables(
+            @NotNull final Cursor cells,
+            final long maxTableSize,
+            final int level) throws IOException {
+        final NavigableMap<Integer, SortedStringTable> results = new TreeMap<>();
+        try {
+            while (cells.isValid()) {
+                final int gen = tableSet.getAndUpdate(TableSet::allocateGeneration).gen;
+                final File dest = writeTable(gen, Cursors.limit(cells, maxTableSize), level);
+                results.put(gen, openTable(dest, gen));
+            }
+        } catch (IOException | RuntimeException ex) {
+            // входные таблицы остались на месте, так что недописанный результат не нужен
+            releaseTables(results.values());
+            throw ex;
+        }
+        return results;
+    }
 
-        gen = ssTableCollection.size() + 1;
+    /**
+     * Загружает отсортированные записи прямо в SSTable'ы, в обход лога и MemTable'а,
+     * -- для массовой перезаливки данных без сбросов и compaction'ов на каждые несколько мегабайт.
+     * Таблицы получают новые поколения и появляются для читателей разом, когда все записаны;
+     * все записи получают одну новую версию, поэтому перекрывают прежние значения тех же ключей
+     * и уступают всему, что записано позже.
+     *
+     * @param records записи по строго возрастающим ключам
+     * @param allowOverlap можно ли загружать ключи из диапазона, в котором уже есть данные;
+     *                     если нет, пересечение -- {@link IllegalArgumentException}
+     * @throws IllegalArgumentException если ключи не возрастают или диапазон пересекается с данными;
+     *                                  в этом случае ничего не загружается
+     */
+    public void ingest(@NotNull final Iterator<Record> records, final boolean allowOverlap) throws IOException {
+        // могилка, записанная после выдачи версии загружаемым записям, должна их закрыть;
+        // пока таблицы не в наборе, compaction выбросил бы ее, не зная, что под ней окажется
+        compactionLock.lock();
+        try {
+            final NavigableMap<Integer, SortedStringTable> ingested =
+                    writeTables(Cursors.sortedRecords(records, Utils.getTime()), MAX_TABLE_SIZE, 0);
+            if (ingested.isEmpty()) {
+                return;
+            }
+            syncDirectory(base);
+
+            // поколения выдавались по мере записи, так что их порядок -- это порядок ключей
+            final ByteBuffer min = ingested.firstEntry().getValue().getMinKey();
+            final ByteBuffer max = ingested.lastEntry().getValue().getMaxKey();
+            assert min != null && max != null;
+            // проверка и добавление -- без пишущих потоков и заморозок между ними;
+            // сброс только переносит данные из памяти на диск, и проверка видит их там или там
+            memTableLock.writeLock().lock();
+            try {
+                if (!allowOverlap && overlaps(min, max)) {
+                    releaseTables(ingested.values());
+                    throw new IllegalArgumentException("Загружаемые ключи пересекаются с уже записанными");
+                }
+                tableSet.updateAndGet(current -> current.addTables(ingested));
+            } finally {
+                memTableLock.writeLock().unlock();
+            }
+            logEdit(ingested, Collections.emptyList());
+            log.info("Загружено таблиц: {}", ingested.size());
+        } finally {
+            compactionLock.unlock();
+        }
+        scheduleCompaction();
+    }
+
+    // замороженный MemTable может сброситься прямо во время проверки
+    private boolean overlaps(@NotNull final ByteBuffer min, @NotNull final ByteBuffer max) throws IOException {
+        final TableSet snapshot = retainMemTables(true);
+        try {
+            return overlapsData(snapshot, min, max);
+        } finally {
+            releaseMemTables(snapshot);
+        }
+    }
+
+    // есть ли в памяти или на диске ключи из [min, max], включая могилки
+    private static boolean overlapsData(@NotNull final TableSet snapshot,
+                                        @NotNull final ByteBuffer min,
+                                        @NotNull final ByteBuffer max) throws IOException {
+        for (final SortedStringTable sortedStringTable : snapshot.ssTables.values()) {
+            final ByteBuffer tableMin = sortedStringTable.getMinKey();
+            final ByteBuffer tableMax = sortedStringTable.getMaxKey();
+            if (tableMin != null && tableMax != null
+                    && tableMin.compareTo(max) <= 0 && tableMax.compareTo(min) >= 0) {
+                return true;
+            }
+        }
+        final List<Table> memTables = new ArrayList<>(snapshot.flushing.values());
+        memTables.add(snapshot.mem);
+        for (final Table table : memTables) {
+            final Cursor cursor = table.cursor(min);
+            if (cursor.isValid() && cursor.keyView().compareTo(max) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Слияние ячеек сжимаемых таблиц в диапазоне ключей [from, to).
+     *
+     * @param to граница диапазона; null -- до конца таблиц
+     */
+    private static Cursor compactedCells(
+            @NotNull final Collection<SortedStringTable> tables,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            @NotNull final TombstoneFilter tombstones) throws IOException {
+        final List<Cursor> cursors = new ArrayList<>();
+        for (final SortedStringTable sortedStringTable : tables) {
+            cursors.add(sortedStringTable.cursor(from, to, false));
+        }
+
+        // если более старых версий этих ключей нигде нет, то могилки больше не нужны
+        return new MergeCursor(cursors, tombstones, false);
+    }
+
+    /**
+     * Записи итератора, отпускающие закрепленные таблицы, как только кончились.
+     */
+    private static final class PinnedRecords implements Iterator<Record> {
+        private final Iterator<Record> records;
+        // действие не ссылается на итератор, иначе сборщик мусора его бы не собрал
+        private final Cleaner.Cleanable release;
+
+        PinnedRecords(@NotNull final Iterator<Record> records,
+                      @NotNull final Runnable release) {
+            this.records = records;
+            this.release = CLEANER.register(this, release);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (records.hasNext()) {
+                return true;
+            }
+            // Cleanable срабатывает не больше одного раза
+            release.clean();
+            return false;
+        }
+
+        @Override
+        public Record next() {
+            return records.next();
+        }
+    }
+
+    /**
+     * Задание для потока, сбрасывающего таблицы на диск:
+     * либо замороженный MemTable вместе с последним сегментом его лога,
+     * либо барьер, либо сигнал завершения.
+     */
+    private static final class FlushTask {
+        static final FlushTask POISON_PILL = new FlushTask(-1, null, -1, null);
+
+        final int gen;
+        final MutableTable table;
+        final int walSegment;
+        final CountDownLatch barrier;
+
+        FlushTask(final int gen,
+                  final MutableTable table,
+                  final int walSegment,
+                  final CountDownLatch barrier) {
+            this.gen = gen;
+            this.table = table;
+            this.walSegment = walSegment;
+            this.barrier = barrier;
+        }
     }
 }
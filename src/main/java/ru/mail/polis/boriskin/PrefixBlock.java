@@ -0,0 +1,273 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Блок с ключами, сжатыми относительно предыдущего ключа (как в LevelDB):
+ * [ячейки][смещения точек перезапуска (int)][число точек перезапуска (int)][число ячеек (int)].
+ * Ячейка -- [длина общего с предыдущим ключом префикса (varint)][длина остатка ключа (varint)]
+ * [остаток ключа][версия], а у живого значения еще [длина значения (varint)][значение];
+ * у могилки версия отрицательная.
+ * В точках перезапуска ключ хранится целиком, так что по ним можно искать бинарным поиском,
+ * а дальше до следующей точки ключи восстанавливаются по порядку.
+ * Поэтому и шаг назад, как в LevelDB, -- это чтение от ближайшей предыдущей точки перезапуска.
+ */
+final class PrefixBlock implements Block {
+    private final ByteBuffer data;
+    // где начинаются смещения точек перезапуска
+    private final int restartsOffset;
+    private final int restarts;
+    private final int rows;
+
+    /**
+     * Блок поверх готовых байт.
+     *
+     * @param data байты блока от position до limit, не копируются
+     */
+    PrefixBlock(@NotNull final ByteBuffer data) {
+        this.data = data.slice();
+        final int end = this.data.limit();
+        this.rows = this.data.getInt(end - Integer.BYTES);
+        this.restarts = this.data.getInt(end - Integer.BYTES * 2);
+        this.restartsOffset = end - Integer.BYTES * 2 - Integer.BYTES * restarts;
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @NotNull
+    @Override
+    public Cursor cursor(@NotNull final ByteBuffer point) {
+        final Reader reader = new Reader(false);
+        reader.seek(point);
+        return reader;
+    }
+
+    @NotNull
+    @Override
+    public Cursor descendingCursor(@Nullable final ByteBuffer to) {
+        final Reader reader = new Reader(true);
+        if (to == null) {
+            reader.seekBefore(restartsOffset);
+        } else {
+            reader.seek(to);
+        }
+        return reader;
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        final Reader reader = new Reader(false);
+        reader.seek(key);
+        if (!reader.valid || reader.compare(key) != 0) {
+            return null;
+        }
+        return reader.readValue();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer firstKey() {
+        final Reader reader = new Reader(false);
+        reader.seekRestart(0);
+        return reader.key();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer lastKey() {
+        final Reader reader = new Reader(false);
+        reader.seekRestart(restarts - 1);
+        while (reader.next < restartsOffset) {
+            reader.advance();
+        }
+        return reader.key();
+    }
+
+    private int restartOffset(final int restart) {
+        return data.getInt(restartsOffset + restart * Integer.BYTES);
+    }
+
+    // ключ в точке перезапуска хранится целиком и сравнивается прямо в блоке
+    private int compareRestart(final int restart, @NotNull final ByteBuffer key) {
+        final ByteBuffer in = data.duplicate();
+        in.position(restartOffset(restart));
+        final int shared = Bytes.getVarInt(in);
+        assert shared == 0;
+        final int sizeOfK = Bytes.getVarInt(in);
+        return Bytes.compare(data, in.position(), sizeOfK, key);
+    }
+
+    /**
+     * Последовательно восстанавливает ячейки блока,
+     * собирая очередной ключ из префикса предыдущего и сохраненного остатка.
+     * Ключ собирается в одном и том же массиве, а представления ключа и значения -- одни и те же буферы.
+     */
+    private final class Reader implements Cursor {
+        private final ByteBuffer in = data.duplicate();
+        private final boolean descending;
+        // начало текущей и следующей ячеек
+        private int current;
+        private int next;
+        // точка перезапуска, от которой восстановлен текущий ключ
+        private int restart;
+        private boolean valid;
+
+        private byte[] key = new byte[32];
+        private int keyLength;
+        private long timeStamp;
+        private int valueOffset;
+        private int valueLength;
+
+        private ByteBuffer keyView = ByteBuffer.wrap(key);
+        private final ByteBuffer valueView = data.duplicate();
+
+        Reader(final boolean descending) {
+            this.descending = descending;
+        }
+
+        // встает на первую ячейку с ключом не меньше point, а в порядке убывания -- на ячейку перед ней
+        @Override
+        public void seek(@NotNull final ByteBuffer point) {
+            // последняя точка перезапуска с ключом меньше point
+            int l = 0;
+            int r = restarts - 1;
+            while (l < r) {
+                final int m = l + (r - l + 1) / 2;
+                if (compareRestart(m, point) < 0) {
+                    l = m;
+                } else {
+                    r = m - 1;
+                }
+            }
+
+            seekRestart(l);
+            while (valid && compare(point) < 0) {
+                advance();
+            }
+            if (descending) {
+                seekBefore(current);
+            }
+        }
+
+        void seekRestart(final int restart) {
+            this.restart = restart;
+            next = restartOffset(restart);
+            keyLength = 0;
+            advance();
+        }
+
+        // встает на ячейку, которая заканчивается там, где начинается ячейка со смещением target
+        void seekBefore(final int target) {
+            int r = restart;
+            while (r + 1 < restarts && restartOffset(r + 1) < target) {
+                r++;
+            }
+            while (r >= 0 && restartOffset(r) >= target) {
+                r--;
+            }
+            if (r < 0) {
+                valid = false;
+                return;
+            }
+            seekRestart(r);
+            while (next < target) {
+                advance();
+            }
+        }
+
+        void advance() {
+            current = next;
+            if (next >= restartsOffset) {
+                valid = false;
+                return;
+            }
+            valid = true;
+            in.position(next);
+            final int shared = Bytes.getVarInt(in);
+            final int unshared = Bytes.getVarInt(in);
+            assert shared <= keyLength;
+            keyLength = shared + unshared;
+            if (key.length < keyLength) {
+                key = Arrays.copyOf(key, Math.max(key.length * 2, keyLength));
+                keyView = ByteBuffer.wrap(key);
+            }
+            in.get(key, shared, unshared);
+            keyView.limit(keyLength);
+
+            timeStamp = in.getLong();
+            if (timeStamp < 0) {
+                valueLength = 0;
+            } else {
+                valueLength = Bytes.getVarInt(in);
+            }
+            valueOffset = in.position();
+            next = valueOffset + valueLength;
+            valueView.limit(next);
+            valueView.position(valueOffset);
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid;
+        }
+
+        @Override
+        public void next() {
+            if (descending) {
+                seekBefore(current);
+            } else {
+                advance();
+            }
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer keyView() {
+            return keyView;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer valueView() {
+            assert timeStamp >= 0;
+            return valueView;
+        }
+
+        @Override
+        public long timestamp() {
+            return Math.abs(timeStamp);
+        }
+
+        @Override
+        public boolean isTombstone() {
+            return timeStamp < 0;
+        }
+
+        // сравнение текущего ключа с переданным
+        int compare(@NotNull final ByteBuffer other) {
+            return Bytes.compare(key, keyLength, other);
+        }
+
+        ByteBuffer key() {
+            return ByteBuffer.wrap(Arrays.copyOf(key, keyLength));
+        }
+
+        Value readValue() {
+            if (timeStamp < 0) {
+                return new Value(-timeStamp, null);
+            }
+            final ByteBuffer val = data.duplicate();
+            val.position(valueOffset);
+            val.limit(valueOffset + valueLength);
+            return new Value(timeStamp, val.slice());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.stream.Collectors;
+
+/**
+ * Size-tiered compaction (как в Cassandra):
+ * таблицы раскладываются по корзинам близкого размера,
+ * и как только в корзине набирается minThreshold таблиц, они сжимаются в одну.
+ * Каждая запись переписывается примерно log(N) раз вместо N при полном compaction'е.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    // таблица попадает в корзину, если ее размер в пределах [LOW, HIGH] от среднего по корзине
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+
+    SizeTieredCompaction(final int minThreshold, final int maxThreshold) {
+        assert 2 <= minThreshold && minThreshold <= maxThreshold;
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+    }
+
+    @Nullable
+    @Override
+    public CompactionTask pick(@NotNull final NavigableMap<Integer, SortedStringTable> ssTables) {
+        final List<Map.Entry<Integer, SortedStringTable>> bySize = ssTables.entrySet().stream()
+                .sorted(Comparator.comparingLong(e -> e.getValue().getSize()))
+                .collect(Collectors.toList());
+
+        // таблицы идут по возрастанию размера, поэтому первая подходящая корзина -- самая дешевая
+        List<Map.Entry<Integer, SortedStringTable>> bucket = new ArrayList<>();
+        long bucketSize = 0;
+        for (final Map.Entry<Integer, SortedStringTable> entry : bySize) {
+            final long size = entry.getValue().getSize();
+            if (!bucket.isEmpty()) {
+                final double average = (double) bucketSize / bucket.size();
+                if (size < average * BUCKET_LOW || size > average * BUCKET_HIGH) {
+                    if (bucket.size() >= minThreshold) {
+                        break;
+                    }
+                    bucket = new ArrayList<>();
+                    bucketSize = 0;
+                }
+            }
+            bucket.add(entry);
+            bucketSize += size;
+        }
+
+        if (bucket.size() < minThreshold) {
+            return null;
+        }
+
+        final List<Integer> inputs = bucket.stream()
+                .limit(maxThreshold)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        // без остальных таблиц нельзя знать, что под могилкой ничего не осталось
+        return new CompactionTask(inputs, 0, inputs.size() == ssTables.size(), Long.MAX_VALUE);
+    }
+}
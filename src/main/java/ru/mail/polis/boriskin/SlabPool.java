@@ -0,0 +1,74 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Свободные slab'ы {@link Arena}: арена сброшенного на диск MemTable'а возвращает их сюда,
+ * а арены новых MemTable'ов берут отсюда, прежде чем выделять память вне кучи заново.
+ * Саму память вне кучи освобождает только сборщик мусора, когда соберет буфер,
+ * так что без пула каждый MemTable занимал бы место под -XX:MaxDirectMemorySize, пока не придет сборщик.
+ * Пул держит не больше заданного объема, а лишние slab'ы оставляет сборщику мусора.
+ */
+final class SlabPool {
+    private final long capacity;
+    // guarded by this
+    private final List<ByteBuffer> free = new ArrayList<>();
+    private long freeBytes;
+
+    /**
+     * @param capacity сколько байт slab'ов держать свободными; 0 -- не держать ничего
+     */
+    SlabPool(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Slab не меньше size байт, выровненный по 8 байт: из пула, если есть подходящий, иначе новый.
+     * Подходит свободный slab меньше 2 * size, чтобы маленький кусок не занял большой slab.
+     * Slab из пула не обнулен.
+     *
+     * @param size сколько байт нужно
+     * @return slab с position 0 и limit, равным емкости
+     */
+    @NotNull
+    ByteBuffer take(final int size) {
+        synchronized (this) {
+            int best = -1;
+            for (int i = 0; i < free.size(); i++) {
+                final int slab = free.get(i).capacity();
+                if (slab >= size && slab < 2L * size && (best < 0 || slab < free.get(best).capacity())) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                final ByteBuffer slab = free.remove(best);
+                freeBytes -= slab.capacity();
+                return slab;
+            }
+        }
+        // выравнивание slab'а по 8 байт нужно для атомарного доступа к long'ам
+        return ByteBuffer.allocateDirect(size + Long.BYTES).alignedSlice(Long.BYTES);
+    }
+
+    /**
+     * Возвращает slab в пул; slab'ом больше никто не должен пользоваться.
+     *
+     * @param slab slab, полученный из {@link #take(int)}
+     */
+    synchronized void give(@NotNull final ByteBuffer slab) {
+        if (freeBytes + slab.capacity() <= capacity) {
+            slab.clear();
+            free.add(slab);
+            freeBytes += slab.capacity();
+        }
+    }
+
+    // сколько байт свободных slab'ов в пуле
+    synchronized long getSize() {
+        return freeBytes;
+    }
+}
@@ -0,0 +1,119 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Снимок данных {@link NewDAO} на момент {@link NewDAO#snapshot()}.
+ * Читает только неизменяемые таблицы, поэтому ни записи, ни compaction'ы после создания снимка
+ * не меняют того, что видят его {@link #get} и итераторы, сколько бы ни длился обход.
+ * Итераторы снимка действительны, пока он не закрыт.
+ *
+ * @author Makary Boriskin
+ */
+public final class Snapshot implements Closeable {
+    // замороженные MemTable'ы и закрепленные SSTable'ы
+    private final TableSet tables;
+    private final long timeStamp;
+    private final Runnable release;
+    private volatile boolean closed;
+
+    Snapshot(@NotNull final TableSet tables,
+             final long timeStamp,
+             @NotNull final Runnable release) {
+        this.tables = tables;
+        this.timeStamp = timeStamp;
+        this.release = release;
+    }
+
+    /**
+     * Все ячейки снимка старше этой версии.
+     * Чтение по ней ничего не отсекает: в снимок попадают только таблицы, замороженные до его создания.
+     *
+     * @return версия, на которую сделан снимок
+     */
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    /**
+     * Значение ключа в снимке.
+     *
+     * @throws NoSuchElementException если в снимке такого ключа нет
+     */
+    @NotNull
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        checkOpen();
+        final Value found = NewDAO.getFromMemory(tables, key);
+        return NewDAO.dataOf(NewDAO.getFromDisk(tables, key, found));
+    }
+
+    /**
+     * Записи снимка, начиная с ключа from (включительно), по возрастанию ключей.
+     */
+    @NotNull
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return range(from, null);
+    }
+
+    /**
+     * Записи снимка от ключа from (включительно) до ключа to (не включительно).
+     *
+     * @param to граница; null -- до конца
+     */
+    @NotNull
+    public Iterator<Record> range(@NotNull final ByteBuffer from,
+                                  @Nullable final ByteBuffer to) throws IOException {
+        return records(from, to, false);
+    }
+
+    /**
+     * Записи снимка с ключами из [from, to) в порядке убывания ключей.
+     *
+     * @param to граница; null -- с последнего ключа
+     */
+    @NotNull
+    public Iterator<Record> descendingRange(@NotNull final ByteBuffer from,
+                                            @Nullable final ByteBuffer to) throws IOException {
+        return records(from, to, true);
+    }
+
+    private Iterator<Record> records(@NotNull final ByteBuffer from,
+                                     @Nullable final ByteBuffer to,
+                                     final boolean descending) throws IOException {
+        checkOpen();
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return Cursors.records(NewDAO.mergedCursor(tables, from, to, descending));
+    }
+
+    /**
+     * Отпускает таблицы снимка: замененные compaction'ом SSTable'ы, которые больше никто не читает,
+     * удаляются с диска.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        release.run();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Снимок закрыт");
+        }
+    }
+}
@@ -1,159 +1,552 @@
 package ru.mail.polis.boriskin;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.IntBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Формат файла версии 3:
+ * [блоки данных][индекс блоков][bloom filter][метаданные][трейлер].
+ * Блок данных устроен как {@link PrefixBlock} и, если это выгодно, сжат {@link Deflater}'ом.
+ * Индекс -- по записи на блок: [длина ключа (int)][ключ-разделитель][смещение блока (long)]
+ * [длина блока на диске (int)][длина блока после распаковки (int)];
+ * блок хранится несжатым, если эти длины совпадают.
+ * Разделитель не меньше последнего ключа блока и меньше первого ключа следующего,
+ * а у последнего блока совпадает с его последним ключом.
+ * Обычно он короче последнего ключа, так что индекс длинных ключей не раздувается.
+ * Трейлер -- [длина метаданных (int)][версия формата (int)][MAGIC (long)].
+ * По метаданным и индексу собирается {@link TableSummary}: диапазоны ключей и версий,
+ * по которым таблицу можно пропустить при чтении.
+ *
+ * <p>В файлах версии 0 вся таблица -- один {@link DenseBlock}, без индекса, фильтра, метаданных и трейлера.
+ */
 public class SortedStringTable implements Table {
+    // "SSTable!" -- младшие 4 байта как число ячеек в файле версии 0 невозможны
+    private static final long MAGIC = 0x53535461626C6521L;
+    private static final int TRAILER = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int VERSION = 3;
+    // метаданные: [начало индекса][начало фильтра][слов в фильтре][хеш-функций][максимальная версия][уровень]
+    // [число блоков][число ячеек][сжатие блоков][число могилок][минимальная версия]
+    // [длина первого ключа][первый ключ][версия самой старой могилки]; META -- их длина без первого ключа
+    private static final int META = Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES
+            + Integer.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES
+            + Integer.BYTES + Long.BYTES;
+
+    private static final int CODEC_NONE = 0;
+    private static final int CODEC_DEFLATE = 1;
+    // наибольшая длина int'а в varint-кодировке
+    private static final int VARINT = 5;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
     private final long size;
-    private final int rows;
 
     private final File table;
+    private final int generation;
+    // по сколько байт блоков отображать в память
+    private final long segmentSize;
+    // общий для всех таблиц кэш прочитанных блоков
+    private final BlockCache blockCache;
+    // уровень, диапазоны ключей и версий; неполная (только уровень и размер), пока таблица не прочитана
+    private volatile TableSummary summary;
+
+    // индекс, фильтр и отображения читаются при первом обращении к таблице (см. load()):
+    // запись полей ниже предшествует записи loaded, а чтение -- его чтению
+    private volatile boolean loaded;
+    // блоки данных, отображенные в память кусками не больше 2 GB: блок целиком лежит в одном куске
+    private ByteBuffer[] segments;
+    private long[] segmentStarts;
+    private int[] blockSegments;
 
-    // хранит указатели на начало каждой строки
-    private final IntBuffer offsets;
-    private final ByteBuffer cells;
+    // разреженный индекс: по записи на блок; у файлов версии 0 -- один DenseBlock на всю таблицу
+    private boolean prefixBlocks;
+    private int blocks;
+    private long[] blockOffsets;
+    private int[] blockDiskLengths;
+    private int[] blockRawLengths;
+    // разделители блоков из индекса; у последнего блока это его последний ключ
+    private ByteBuffer[] lastKeys;
+
+    // null у файлов версии 0
+    @Nullable
+    private BloomFilter bloomFilter;
+    // самая свежая версия ячейки в файлах версии 0: считается при первом обращении
+    private volatile long maxTimeStamp = TableSummary.UNKNOWN;
+    // одна ссылка у набора таблиц DAO, по одной -- у каждого итератора и снимка, читающего таблицу;
+    // файл удаляется, когда таблица больше не нужна ни набору, ни читателям
+    private final AtomicInteger refs = new AtomicInteger(1);
 
     File getTable() {
         return table;
     }
 
+    /**
+     * Закрепляет таблицу за читателем: пока ссылка не отпущена, файл не удаляется.
+     * Закреплять можно только таблицу, на которую есть хотя бы одна ссылка.
+     */
+    void retain() {
+        final int prev = refs.getAndIncrement();
+        assert prev > 0 : "Таблица " + table + " уже удалена";
+    }
+
+    /**
+     * Отпускает ссылку; последняя удаляет файл таблицы.
+     *
+     * @return удален ли файл
+     */
+    boolean release() {
+        final int left = refs.decrementAndGet();
+        assert left >= 0 : "Лишний release таблицы " + table;
+        if (left > 0) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(table.toPath());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return true;
+    }
+
     @Override
     public long getSize() {
         return size;
     }
 
-    @NotNull
-    @Override
-    public Iterator<TableCell> iterator(@NotNull final ByteBuffer point) throws IOException {
-        return new Iterator<>() {
-            int next = findNext(point);
+    // уровень для leveled compaction'а; 0 -- только что сброшенные таблицы
+    int getLevel() {
+        return summary.getLevel();
+    }
 
-            @Override
-            public boolean hasNext() {
-                return next < rows;
-            }
+    // из манифеста или из прочитанного файла
+    TableSummary getSummary() {
+        return summary;
+    }
 
-            /**
-             * Пользователь дергает next.
-             * Движемся по итераторам - мерджим их,
-             * выбираем самое свежее значение, движемся дальше.
-             *
-             * @return самое свежее значение
-             */
-            @Override
-            public TableCell next() {
-                assert hasNext();
-                return findCell(next++);
-            }
-        };
+    // первый ключ таблицы; null у пустой таблицы
+    @Nullable
+    ByteBuffer getMinKey() {
+        return getSummary().getMinKey();
     }
 
-    private TableCell findCell(final int index) {
-        assert index >= 0 && index < rows;
+    // последний ключ таблицы; null у пустой таблицы
+    @Nullable
+    ByteBuffer getMaxKey() {
+        return getSummary().getMaxKey();
+    }
 
-        int offset = offsets.get(index);
+    // может ли в таблице быть ключ из [from, to); сводка из манифеста отвечает, не открывая файла
+    boolean intersects(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return getSummary().intersects(from, to);
+    }
 
-        // используем длину ключа
-        final int sizeOfK = cells.getInt(offset);
-        offset += Integer.BYTES;
+    // может ли в таблице быть такой ключ
+    boolean mayContain(@NotNull final ByteBuffer key) {
+        return getSummary().mayContain(key);
+    }
 
-        final ByteBuffer key = cells.duplicate();
-        key.position(offset);
-        key.limit(key.position() + sizeOfK);
-        offset += sizeOfK;
+    /**
+     * Выборка ключей таблицы без чтения блоков: разделители блоков из индекса.
+     * Блоки примерно одного размера, так что между соседними ключами выборки лежит примерно поровну данных.
+     *
+     * @return ключи по возрастанию
+     */
+    List<ByteBuffer> sampleKeys() {
+        loadUnchecked();
+        final List<ByteBuffer> keys = new ArrayList<>(blocks);
+        for (int b = 0; b < blocks; b++) {
+            keys.add(lastKeys[b].duplicate());
+        }
+        return keys;
+    }
 
-        // работа с версией
-        final long timeStamp = cells.getLong(offset);
-        offset += Long.BYTES;
+    /**
+     * Ни одна ячейка таблицы не свежее этой версии,
+     * поэтому при точечном поиске таблицу можно пропустить,
+     * если уже найдена ячейка с версией не меньше этой.
+     *
+     * @return максимальная версия ячейки в таблице
+     */
+    long getMaxTimeStamp() throws IOException {
+        final long known = getSummary().getMaxTimeStamp();
+        if (known >= 0) {
+            return known;
+        }
+        load();
+        if (maxTimeStamp < 0) {
+            long max = 0;
+            for (int b = 0; b < blocks; b++) {
+                for (final Cursor cells = block(b).cursor(EMPTY); cells.isValid(); cells.next()) {
+                    max = Math.max(max, cells.timestamp());
+                }
+            }
+            maxTimeStamp = max;
+        }
+        return maxTimeStamp;
+    }
 
-        if (timeStamp < 0) {
-            // если это могилка, то дальше ничего нет
-            return new TableCell(key.slice(), new Value(-timeStamp, null));
+    /**
+     * Диапазон, не пересекающийся с ключами таблицы по сводке, не читает ни одного блока
+     * (и не открывает таблицу, если сводка есть в манифесте),
+     * а граница внутри таблицы останавливает курсор до следующего блока.
+     */
+    @NotNull
+    @Override
+    public Cursor cursor(@NotNull final ByteBuffer from,
+                         @Nullable final ByteBuffer to,
+                         final boolean descending) throws IOException {
+        final BlockCursor cursor = new BlockCursor(from, to, descending);
+        if (!intersects(from, to)) {
+            return cursor;
+        }
+        if (descending) {
+            cursor.seekBefore(to);
         } else {
-            // Values Module
-            final int sizeOfV = cells.getInt(offset);
-            offset += Integer.BYTES;
+            cursor.seek(from);
+        }
+        return cursor;
+    }
 
-            final ByteBuffer val = cells.duplicate();
-            val.position(offset);
-            val.limit(val.position() + sizeOfV);
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) throws IOException {
+        return get(key, BloomFilter.hash(key));
+    }
 
-            // если это нормальное значение, то дальше длина этого значения и само значение
-            return new TableCell(key.slice(), new Value(timeStamp, val.slice()));
+    /**
+     * Ищет ячейку ровно с таким ключом, не создавая итераторов и ячеек.
+     *
+     * @param key искомый ключ
+     * @param keyHash {@link BloomFilter#hash(ByteBuffer)} от ключа
+     * @return значение по этому ключу (возможно, могилка) или null, если ключа в таблице нет
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key, final long keyHash) throws IOException {
+        if (!mayContain(key)) {
+            return null;
+        }
+        load();
+        // фильтр отсекает почти все таблицы, в которых ключа нет, без чтения блоков
+        if (bloomFilter != null && !bloomFilter.mightContain(keyHash)) {
+            return null;
         }
+
+        final int b = blockFor(key);
+        if (b >= blocks) {
+            return null;
+        }
+        return block(b).get(key);
     }
 
-    // бинарный поиск поверх файла
-    private int findNext(final ByteBuffer point) {
+    // бинарный поиск по индексу: первый блок, разделитель которого не меньше point
+    private int blockFor(@NotNull final ByteBuffer point) {
         int l = 0;
-        int r = rows - 1;
-        while (l < r + 1) {
-            // берем строчку n/2
+        int r = blocks - 1;
+        while (l <= r) {
             final int m = l + (r - l) / 2;
-            // прыгаем по этой строке,
-            // читаем ключ, сравниваем с тем, что пользователь передал
-            final int cmp = findK(m).compareTo(point);
-            // понимаем в какую сторону смотреть
-            if (cmp < 0) {
+            if (lastKeys[m].compareTo(point) < 0) {
                 l = m + 1;
-            } else if (cmp > 0) {
-                r = m - 1;
             } else {
-                return m;
+                r = m - 1;
             }
         }
         return l;
     }
 
-    private Comparable<ByteBuffer> findK(final int index) {
-        assert 0 <= index && index < rows;
-
-        final int offset = offsets.get(index);
-        final int sizeOfK = cells.getInt(offset);
-        final ByteBuffer key = cells.duplicate();
+    private Block block(final int index) throws IOException {
+        final long key = BlockCache.key(generation, blockOffsets[index]);
+        final Block cached = blockCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final Block block = readBlock(index);
+        blockCache.put(key, block, blockRawLengths[index]);
+        return block;
+    }
 
-        key.position(offset + Integer.BYTES);
-        key.limit(key.position() + sizeOfK);
+    private Block readBlock(final int index) throws IOException {
+        final int segment = blockSegments[index];
+        final int offset = (int) (blockOffsets[index] - segmentStarts[segment]);
+        final ByteBuffer data = segments[segment].duplicate();
+        data.position(offset);
+        data.limit(offset + blockDiskLengths[index]);
+        final ByteBuffer raw = blockDiskLengths[index] == blockRawLengths[index]
+                ? data
+                : inflate(data, blockRawLengths[index]);
+        return prefixBlocks ? new PrefixBlock(raw) : new DenseBlock(raw);
+    }
 
-        return key.slice();
+    private ByteBuffer inflate(@NotNull final ByteBuffer compressed, final int rawLength) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            final ByteBuffer raw = ByteBuffer.allocate(rawLength);
+            while (!inflater.finished()) {
+                if (inflater.inflate(raw) == 0 && !inflater.finished()) {
+                    throw new IOException("Обрезанный блок в " + table);
+                }
+            }
+            if (raw.hasRemaining()) {
+                throw new IOException("Блок короче заявленного в " + table);
+            }
+            raw.flip();
+            return raw;
+        } catch (DataFormatException ex) {
+            throw new IOException("Поврежденный блок в " + table, ex);
+        } finally {
+            inflater.end();
+        }
     }
 
-    // Отсортированная таблица на диске.
-    // После записи на диск поддерживает только операции чтения.
-    SortedStringTable(@NotNull final File f) throws IOException {
+    /**
+     * Отсортированная таблица на диске; после записи поддерживает только операции чтения.
+     * Индекс и фильтр отображаются в память каждый целиком, а блоки данных -- кусками,
+     * так что размер файла не ограничен 2 GB одного {@link java.nio.MappedByteBuffer}'а.
+     *
+     * @param segmentSize по сколько байт блоков отображать в память
+     */
+    SortedStringTable(@NotNull final File f,
+                      final int generation,
+                      @NotNull final BlockCache blockCache,
+                      final long segmentSize) throws IOException {
         this.table = f;
+        this.generation = generation;
+        this.blockCache = blockCache;
+        this.segmentSize = segmentSize;
         this.size = f.length();
-        assert size != 0 && size <= Integer.MAX_VALUE;
+        load();
+    }
+
+    /**
+     * Таблица, сводка о которой уже известна (из манифеста):
+     * файл не открывается, пока таблицу не начнут читать,
+     * так что холодные таблицы не занимают ни памяти под индекс, ни адресного пространства,
+     * а таблицы вне диапазона запроса не открываются вовсе.
+     *
+     * @param summary сводка из манифеста
+     */
+    SortedStringTable(@NotNull final File f,
+                      final int generation,
+                      @NotNull final BlockCache blockCache,
+                      final long segmentSize,
+                      @NotNull final TableSummary summary) {
+        this.table = f;
+        this.generation = generation;
+        this.blockCache = blockCache;
+        this.segmentSize = segmentSize;
+        this.size = summary.getSize();
+        this.summary = summary;
+    }
+
+    private void loadUnchecked() {
+        try {
+            load();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // читает метаданные и индекс и отображает файл в память; повторные вызовы ничего не делают
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                final TableSummary read = mapFile();
+                // у таблицы из манифеста сводка уже есть
+                if (summary == null) {
+                    summary = read;
+                }
+                loaded = true;
+            }
+        }
+    }
+
+    private TableSummary mapFile() throws IOException {
+        final File f = table;
+        assert size != 0;
 
-        final MappedByteBuffer mapped;
         try (FileChannel fileChannel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
-            mapped = (MappedByteBuffer) fileChannel.map(
-                    FileChannel.MapMode.READ_ONLY, 0L, fileChannel.size()
-            ).order(ByteOrder.BIG_ENDIAN);
+            final ByteBuffer trailer = size < TRAILER ? null : read(fileChannel, size - TRAILER, TRAILER);
+            if (trailer == null || trailer.getLong(Integer.BYTES * 2) != MAGIC) {
+                // версия 0: вся таблица -- один блок
+                final ByteBuffer mapped = map(fileChannel, 0L, size);
+                this.bloomFilter = null;
+                this.prefixBlocks = false;
+                final int rows = mapped.getInt((int) (size - Integer.BYTES));
+                this.blocks = rows == 0 ? 0 : 1;
+                this.blockOffsets = new long[]{0L};
+                this.blockDiskLengths = new int[]{(int) size};
+                this.blockRawLengths = blockDiskLengths;
+                this.lastKeys = new ByteBuffer[]{lastKey(mapped, (int) size)};
+                this.segments = new ByteBuffer[]{mapped};
+                this.segmentStarts = new long[]{0L};
+                this.blockSegments = new int[1];
+                return summarize(0, rows, TableSummary.UNKNOWN, TableSummary.UNKNOWN, TableSummary.UNKNOWN,
+                        TableSummary.UNKNOWN, null);
+            }
+
+            final int version = trailer.getInt(Integer.BYTES);
+            if (version != VERSION) {
+                throw new IOException("Неизвестная версия формата " + version + " в " + f);
+            }
+            final int metaLength = trailer.getInt(0);
+            if (metaLength < META || metaLength > size - TRAILER) {
+                throw new IOException("Поврежденные метаданные в " + f);
+            }
+            final ByteBuffer meta = read(fileChannel, size - TRAILER - metaLength, metaLength);
+            final long body = meta.getLong();
+            final long bloomOffset = meta.getLong();
+            final int bloomWords = meta.getInt();
+            final int bloomHashes = meta.getInt();
+            final long newest = meta.getLong();
+            final int level = meta.getInt();
+
+            // таблица не больше куска отображается одним куском целиком: отображений у процесса ограниченное число
+            final ByteBuffer whole = size <= segmentSize ? map(fileChannel, 0L, size) : null;
+            final ByteBuffer bloom = region(fileChannel, whole, bloomOffset, (long) bloomWords * Long.BYTES);
+            this.bloomFilter = new BloomFilter(bloom.asLongBuffer(), bloomHashes);
+            this.prefixBlocks = true;
+
+            this.blocks = meta.getInt();
+            final int rows = meta.getInt();
+            final int codec = meta.getInt();
+            if (codec != CODEC_NONE && codec != CODEC_DEFLATE) {
+                throw new IOException("Неизвестное сжатие блоков " + codec + " в " + f);
+            }
+            final int tombstones = meta.getInt();
+            final long minTimeStamp = meta.getLong();
+            final int sizeOfMinKey = meta.getInt();
+            if (metaLength != META + sizeOfMinKey) {
+                throw new IOException("Поврежденные метаданные в " + f);
+            }
+            final ByteBuffer minKey = meta.slice();
+            minKey.limit(sizeOfMinKey);
+            meta.position(meta.position() + sizeOfMinKey);
+            final long oldestTombstone = meta.getLong();
+
+            // последние ключи блоков остаются представлениями отображенного индекса
+            final ByteBuffer index = region(fileChannel, whole, body, bloomOffset - body);
+            this.blockOffsets = new long[blocks];
+            this.blockDiskLengths = new int[blocks];
+            this.blockRawLengths = new int[blocks];
+            this.lastKeys = new ByteBuffer[blocks];
+            for (int b = 0; b < blocks; b++) {
+                final int sizeOfK = index.getInt();
+                final ByteBuffer key = index.slice();
+                key.limit(sizeOfK);
+                lastKeys[b] = key;
+                index.position(index.position() + sizeOfK);
+                blockOffsets[b] = index.getLong();
+                blockDiskLengths[b] = index.getInt();
+                blockRawLengths[b] = index.getInt();
+            }
+
+            // блоки лежат подряд с начала файла; кусок заканчивается на границе блока
+            this.blockSegments = new int[blocks];
+            final List<ByteBuffer> mappedSegments = new ArrayList<>();
+            final List<Long> starts = new ArrayList<>();
+            long start = 0L;
+            for (int b = 0; b < blocks; b++) {
+                final long end = blockOffsets[b] + blockDiskLengths[b];
+                if (end - start > segmentSize && blockOffsets[b] > start) {
+                    mappedSegments.add(region(fileChannel, whole, start, blockOffsets[b] - start));
+                    starts.add(start);
+                    start = blockOffsets[b];
+                }
+                blockSegments[b] = mappedSegments.size();
+            }
+            if (blocks > 0) {
+                final long end = blockOffsets[blocks - 1] + blockDiskLengths[blocks - 1];
+                mappedSegments.add(region(fileChannel, whole, start, end - start));
+                starts.add(start);
+            }
+            this.segments = mappedSegments.toArray(new ByteBuffer[0]);
+            this.segmentStarts = new long[starts.size()];
+            for (int i = 0; i < segmentStarts.length; i++) {
+                segmentStarts[i] = starts.get(i);
+            }
+            return summarize(level, rows, tombstones, minTimeStamp, newest, oldestTombstone, minKey);
         }
+    }
 
-        rows = mapped.getInt((int) (size - Integer.BYTES));
+    // сводка по прочитанному индексу; первый ключ таблиц версии 0 лежит в первом блоке
+    private TableSummary summarize(final int level,
+                                   final int rows,
+                                   final int tombstones,
+                                   final long minTimeStamp,
+                                   final long maxTimeStamp,
+                                   final long oldestTombstone,
+                                   @Nullable final ByteBuffer minKey) throws IOException {
+        if (blocks == 0) {
+            return new TableSummary(level, size, rows, tombstones, minTimeStamp, maxTimeStamp, oldestTombstone,
+                    null, null);
+        }
+        return new TableSummary(level, size, rows, tombstones, minTimeStamp, maxTimeStamp, oldestTombstone,
+                minKey == null ? block(0).firstKey() : minKey,
+                lastKeys[blocks - 1]);
+    }
 
-        final ByteBuffer offsetsByteBuffer = mapped.duplicate();
-        final ByteBuffer cellsByteBuffer = mapped.duplicate();
+    // один кусок файла в памяти; отображение переживает закрытие канала
+    private ByteBuffer map(@NotNull final FileChannel fileChannel,
+                           final long position,
+                           final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Раздел длиной " + length + " байт не отображается в память целиком в " + table);
+        }
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.BIG_ENDIAN);
+    }
 
-        offsetsByteBuffer.position(mapped.limit() - Integer.BYTES * rows - Integer.BYTES);
-        offsetsByteBuffer.limit(mapped.limit() - Integer.BYTES);
-        cellsByteBuffer.limit(offsetsByteBuffer.position());
+    // часть уже отображенного целиком файла или отдельно отображенный кусок
+    private ByteBuffer region(@NotNull final FileChannel fileChannel,
+                              @Nullable final ByteBuffer whole,
+                              final long position,
+                              final long length) throws IOException {
+        if (whole == null) {
+            return map(fileChannel, position, length);
+        }
+        final ByteBuffer region = whole.duplicate();
+        region.position((int) position);
+        region.limit((int) (position + length));
+        return region.slice();
+    }
+
+    // метаданные читаются обычным чтением: отображать ради них файл незачем
+    private ByteBuffer read(@NotNull final FileChannel fileChannel,
+                            final long position,
+                            final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Обрезанный файл " + table);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
 
-        this.offsets = offsetsByteBuffer.slice().asIntBuffer();
-        this.cells = cellsByteBuffer.slice();
+    // последний ключ единственного блока таблиц версии 0
+    @Nullable
+    private static ByteBuffer lastKey(@NotNull final ByteBuffer mapped, final int end) {
+        final ByteBuffer data = mapped.duplicate();
+        data.limit(end);
+        final Block block = new DenseBlock(data);
+        return block.getRows() == 0 ? null : block.lastKey();
     }
 
     @Override
@@ -166,56 +559,466 @@ public class SortedStringTable implements Table {
         throw new UnsupportedOperationException("");
     }
 
-    static void writeData(final Iterator<TableCell> cells, final File target) throws IOException {
+    static long writeData(final Cursor cells, final File target) throws IOException {
+        return writeData(cells, target, 0, TableOptions.defaults());
+    }
+
+    /**
+     * Записывает ячейки в новый файл таблицы.
+     *
+     * @param cells курсор по ячейкам; дочитывается до конца
+     * @param target временный файл; оставшийся от прерванной записи перезаписывается
+     * @param level уровень таблицы для leveled compaction'а
+     * @param options размер блоков и сжатие
+     * @return сколько байт записано
+     */
+    static long writeData(final Cursor cells,
+                          final File target,
+                          final int level,
+                          @NotNull final TableOptions options) throws IOException {
         try (FileChannel fileChannel = FileChannel.open(target.toPath(),
-                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
                 StandardOpenOption.WRITE)) {
-            final List<Integer> offsets = new ArrayList<>();
-            int offset = 0;
-            while (cells.hasNext()) {
-                offsets.add(offset);
-
-                final TableCell tableCell = cells.next();
-
-                final ByteBuffer key = tableCell.getKey();
-                final int sizeOfK = key.remaining();
-
-                fileChannel.write(Bytes.fromInt(sizeOfK));
-                offset += Integer.BYTES;
-                fileChannel.write(key);
-                offset += sizeOfK;
-
-                final Value val = tableCell.getValue();
-
-                /*
-                TimeStamp Module
-                храним монотонно увеличивающийся в системе Time Stamp,
-                чтобы можно было взять строки и по значению версии определить что свежее
-                 */
-                if (val.wasRemoved()) {
-                    fileChannel.write(Bytes.fromLong(-tableCell.getValue().getTimeStamp()));
+            final Writer writer = new Writer(fileChannel, options);
+            final long written;
+            try {
+                while (cells.isValid()) {
+                    writer.add(cells);
+                    cells.next();
+                }
+                written = writer.finish(level);
+            } finally {
+                writer.close();
+            }
+
+            // таблица должна лечь на диск до переименования из временного файла
+            fileChannel.force(false);
+            return written;
+        }
+    }
+
+    /**
+     * Курсор по блокам таблицы: блоки читаются по одному, по мере продвижения курсора.
+     * Внутри блока ячейки не создаются -- курсор блока только переставляет свои представления.
+     * Ключи за границами диапазона [from, to) курсор не показывает.
+     */
+    private final class BlockCursor implements Cursor {
+        private final ByteBuffer from;
+        @Nullable
+        private final ByteBuffer to;
+        private final boolean descending;
+        private int blockIndex;
+        // курсор текущего блока; null, когда блоки кончились
+        @Nullable
+        private Cursor cells;
+
+        BlockCursor(@NotNull final ByteBuffer from,
+                    @Nullable final ByteBuffer to,
+                    final boolean descending) {
+            this.from = from;
+            this.to = to;
+            this.descending = descending;
+        }
+
+        @Override
+        public void seek(@NotNull final ByteBuffer point) throws IOException {
+            // курсор таблицы, пропущенной по сводке, мог остаться без прочитанного индекса
+            load();
+            if (descending) {
+                seekBefore(to == null || point.compareTo(to) < 0 ? point : to);
+                return;
+            }
+            final ByteBuffer start = point.compareTo(from) < 0 ? from : point;
+            blockIndex = blockFor(start);
+            cells = blockIndex < blocks ? block(blockIndex).cursor(start) : null;
+            if (cells != null && !cells.isValid()) {
+                // start между последним ключом блока и разделителем: ячейка найдется в начале следующего
+                blockIndex++;
+                cells = blockIndex < blocks ? block(blockIndex).cursor(EMPTY) : null;
+            }
+            checkBounds();
+        }
+
+        // на последнюю ячейку с ключом меньше bound; null -- на последнюю ячейку таблицы
+        void seekBefore(@Nullable final ByteBuffer bound) throws IOException {
+            load();
+            // ключи меньше bound лежат не дальше первого блока, разделитель которого не меньше bound
+            blockIndex = bound == null ? blocks - 1 : Math.min(blockFor(bound), blocks - 1);
+            cells = blockIndex >= 0 ? block(blockIndex).descendingCursor(bound) : null;
+            if (cells != null && !cells.isValid()) {
+                previousBlock();
+            }
+            checkBounds();
+        }
+
+        @Override
+        public boolean isValid() {
+            return cells != null;
+        }
+
+        @Override
+        public void next() throws IOException {
+            assert cells != null;
+            cells.next();
+            if (!cells.isValid()) {
+                if (descending) {
+                    previousBlock();
                 } else {
-                    fileChannel.write(Bytes.fromLong(tableCell.getValue().getTimeStamp()));
+                    blockIndex++;
+                    cells = blockIndex < blocks ? block(blockIndex).cursor(EMPTY) : null;
                 }
+            }
+            checkBounds();
+        }
+
+        private void previousBlock() throws IOException {
+            blockIndex--;
+            // по индексу видно, что в предыдущем блоке все ключи меньше from, -- его можно не читать
+            cells = blockIndex >= 0 && lastKeys[blockIndex].compareTo(from) >= 0
+                    ? block(blockIndex).descendingCursor(null)
+                    : null;
+        }
+
+        private void checkBounds() {
+            if (cells == null) {
+                return;
+            }
+            final ByteBuffer key = cells.keyView();
+            if (descending ? key.compareTo(from) < 0 : to != null && key.compareTo(to) >= 0) {
+                cells = null;
+            }
+        }
 
-                offset += Long.BYTES;
+        @NotNull
+        @Override
+        public ByteBuffer keyView() {
+            assert cells != null;
+            return cells.keyView();
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer valueView() {
+            assert cells != null;
+            return cells.valueView();
+        }
+
+        @Override
+        public long timestamp() {
+            assert cells != null;
+            return cells.timestamp();
+        }
+
+        @Override
+        public boolean isTombstone() {
+            assert cells != null;
+            return cells.isTombstone();
+        }
+    }
+
+    /**
+     * Пишет ячейки блоками по мере их поступления,
+     * а индекс, фильтр и метаданные -- в конце.
+     * Все, что пишется в файл, копится в большом direct-буфере и уходит в канал крупными кусками,
+     * так что системный вызов приходится не на каждое поле, а на мегабайт данных.
+     */
+    private static final class Writer {
+        private static final int OUTPUT_SIZE = 1024 * 1024;
+        // выходной буфер переиспользуется всеми таблицами, которые пишет один и тот же поток
+        private static final ThreadLocal<ByteBuffer> OUTPUT =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(OUTPUT_SIZE));
+
+        private final FileChannel channel;
+        private final ByteBuffer out;
+        // сколько байт уже отдано в файл или в выходной буфер
+        private long written;
+        private final int blockSize;
+        private final int restartInterval;
+        @Nullable
+        private final Deflater deflater;
+
+        // текущий блок и смещения его точек перезапуска
+        private ByteBuffer block;
+        private int[] restarts = new int[64];
+        private int blockRestarts;
+        private int blockRows;
+        // предыдущий ключ, относительно которого сжимается следующий
+        private byte[] prevKey = new byte[64];
+        private int prevKeyLength;
+        private ByteBuffer compressed = ByteBuffer.allocate(0);
+
+        private ByteBuffer index = ByteBuffer.allocate(1024);
+        private int blocks;
+        private long position;
+        // запись индекса о последнем законченном блоке ждет первого ключа следующего, чтобы взять разделитель;
+        // последний ключ блока до тех пор лежит в prevKey
+        private boolean pending;
+        private int pendingKeyLength;
+        private long pendingOffset;
+        private int pendingDiskLength;
+        private int pendingRawLength;
 
-                if (!val.wasRemoved()) {
-                    final ByteBuffer data = val.getData();
-                    final int sizeOfV = data.remaining();
+        // хеши ключей для bloom filter'а: сколько будет ключей, заранее неизвестно
+        private long[] keyHashes = new long[64];
+        private int rows;
+        private int tombstones;
+        private long minTimeStamp = Long.MAX_VALUE;
+        private long maxTimeStamp;
+        private long oldestTombstone = Long.MAX_VALUE;
+        @Nullable
+        private byte[] firstKey;
 
-                    fileChannel.write(Bytes.fromInt(sizeOfV));
-                    offset += Integer.BYTES;
-                    fileChannel.write(data);
-                    offset += sizeOfV;
+        Writer(@NotNull final FileChannel channel, @NotNull final TableOptions options) {
+            this.channel = channel;
+            this.out = OUTPUT.get();
+            out.clear();
+            this.blockSize = options.getBlockSize();
+            this.restartInterval = options.getRestartInterval();
+            this.deflater = options.isCompression() ? new Deflater(Deflater.BEST_SPEED) : null;
+            this.block = ByteBuffer.allocate(blockSize + blockSize / 2);
+        }
+
+        // представления курсора только читаются: их position и limit остаются как были
+        void add(@NotNull final Cursor cell) throws IOException {
+            final ByteBuffer key = cell.keyView();
+            final long timeStamp = cell.timestamp();
+            final int sizeOfK = key.remaining();
+            final ByteBuffer data = cell.isTombstone() ? null : cell.valueView();
+
+            final boolean restart = blockRows % restartInterval == 0;
+            final int shared = restart ? 0 : Bytes.commonPrefix(prevKey, prevKeyLength, key);
+            final int unshared = sizeOfK - shared;
+            final int sizeOfCell = VARINT + VARINT + unshared + Long.BYTES
+                    + (data == null ? 0 : VARINT + data.remaining());
+
+            // место и под смещения точек перезапуска с их числом и числом строк,
+            // которые допишутся при закрытии блока
+            block = ensureCapacity(block, sizeOfCell + Integer.BYTES * (blockRestarts + 3));
+            if (restart) {
+                if (blockRestarts == restarts.length) {
+                    restarts = Arrays.copyOf(restarts, restarts.length * 2);
                 }
+                restarts[blockRestarts++] = block.position();
+            }
+            blockRows++;
+            if (pending) {
+                // ключ еще не запомнен: prevKey -- последний ключ предыдущего блока
+                indexBlock(separatorLength(key));
+            }
+
+            if (rows == keyHashes.length) {
+                keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+            }
+            if (rows == 0) {
+                firstKey = new byte[sizeOfK];
+                key.duplicate().get(firstKey);
+            }
+            keyHashes[rows++] = BloomFilter.hash(key);
+            minTimeStamp = Math.min(minTimeStamp, timeStamp);
+            maxTimeStamp = Math.max(maxTimeStamp, timeStamp);
+            if (data == null) {
+                tombstones++;
+                oldestTombstone = Math.min(oldestTombstone, timeStamp);
+            }
+
+            Bytes.putVarInt(block, shared);
+            Bytes.putVarInt(block, unshared);
+            rememberKey(key, shared);
+            block.put(prevKey, shared, unshared);
+            /*
+            TimeStamp Module
+            храним монотонно увеличивающийся в системе Time Stamp,
+            чтобы можно было взять строки и по значению версии определить что свежее
+             */
+            if (data == null) {
+                block.putLong(-timeStamp);
+            } else {
+                block.putLong(timeStamp);
+                Bytes.putVarInt(block, data.remaining());
+                Bytes.put(block, data);
+            }
+
+            if (block.position() >= blockSize) {
+                finishBlock();
+            }
+        }
+
+        // возвращает размер файла
+        long finish(final int level) throws IOException {
+            if (blockRows > 0) {
+                finishBlock();
+            }
+            if (pending) {
+                indexBlock(pendingKeyLength);
+            }
+
+            final long indexOffset = position;
+            index.flip();
+            final long bloomOffset = indexOffset + index.remaining();
+            write(index);
+
+            final ByteBuffer bloom = BloomFilter.build(keyHashes, rows);
+            final int bloomWords = bloom.remaining() / Long.BYTES;
+            write(bloom);
+
+            final int sizeOfK = firstKey == null ? 0 : firstKey.length;
+            final ByteBuffer footer = ByteBuffer.allocate(META + sizeOfK + TRAILER);
+            footer.putLong(indexOffset);
+            footer.putLong(bloomOffset);
+            footer.putInt(bloomWords);
+            footer.putInt(BloomFilter.HASHES);
+            footer.putLong(maxTimeStamp);
+            footer.putInt(level);
+            footer.putInt(blocks);
+            footer.putInt(rows);
+            footer.putInt(deflater == null ? CODEC_NONE : CODEC_DEFLATE);
+            footer.putInt(tombstones);
+            footer.putLong(rows == 0 ? 0L : minTimeStamp);
+            footer.putInt(sizeOfK);
+            if (firstKey != null) {
+                footer.put(firstKey);
+            }
+            footer.putLong(oldestTombstone);
+            footer.putInt(META + sizeOfK);
+            footer.putInt(VERSION);
+            footer.putLong(MAGIC);
+            footer.flip();
+            write(footer);
+            drain(null);
+            return written;
+        }
+
+        void close() {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        // в prevKey уже лежат первые shared байт ключа
+        private void rememberKey(@NotNull final ByteBuffer key, final int shared) {
+            final int sizeOfK = key.remaining();
+            if (prevKey.length < sizeOfK) {
+                prevKey = Arrays.copyOf(prevKey, Math.max(prevKey.length * 2, sizeOfK));
+            }
+            final int keyPosition = key.position();
+            for (int i = shared; i < sizeOfK; i++) {
+                prevKey[i] = key.get(keyPosition + i);
+            }
+            prevKeyLength = sizeOfK;
+        }
+
+        private void finishBlock() throws IOException {
+            for (int i = 0; i < blockRestarts; i++) {
+                block.putInt(restarts[i]);
+            }
+            block.putInt(blockRestarts);
+            block.putInt(blockRows);
+            block.flip();
+
+            final int rawLength = block.remaining();
+            final ByteBuffer out = deflater == null ? block : deflate(block);
+            final int diskLength = out.remaining();
+            write(out);
+
+            // последний ключ блока -- тот, относительно которого сжимался бы следующий
+            pending = true;
+            pendingKeyLength = prevKeyLength;
+            pendingOffset = position;
+            pendingDiskLength = diskLength;
+            pendingRawLength = rawLength;
+
+            position += diskLength;
+            blocks++;
+            block.clear();
+            blockRestarts = 0;
+            blockRows = 0;
+            prevKeyLength = 0;
+        }
+
+        // запись индекса о законченном блоке с первыми keyLength байтами prevKey в качестве разделителя
+        private void indexBlock(final int keyLength) {
+            index = ensureCapacity(index, Integer.BYTES + keyLength + Long.BYTES + Integer.BYTES * 2);
+            index.putInt(keyLength);
+            index.put(prevKey, 0, keyLength);
+            index.putLong(pendingOffset);
+            index.putInt(pendingDiskLength);
+            index.putInt(pendingRawLength);
+            pending = false;
+        }
+
+        /*
+         * Самый короткий разделитель между последним ключом блока и next -- префикс next,
+         * на байт длиннее их общего префикса: он уже больше последнего ключа.
+         * Если он не короче последнего ключа или совпадает с next, разделителем остается сам последний ключ.
+         * Байты разделителя дописываются в prevKey после общего префикса.
+         */
+        private int separatorLength(@NotNull final ByteBuffer next) {
+            final int common = Bytes.commonPrefix(prevKey, pendingKeyLength, next);
+            final int length = common + 1;
+            if (length >= pendingKeyLength || length >= next.remaining()) {
+                return pendingKeyLength;
+            }
+            prevKey[common] = next.get(next.position() + common);
+            return length;
+        }
+
+        // сжатый блок или исходный, если сжатие ничего не дало
+        private ByteBuffer deflate(@NotNull final ByteBuffer raw) {
+            assert deflater != null;
+            if (compressed.capacity() < raw.remaining()) {
+                compressed = ByteBuffer.allocate(raw.remaining());
             }
+            compressed.clear();
+            compressed.limit(raw.remaining());
 
-            for (final Integer o : offsets) {
-                fileChannel.write(Bytes.fromInt(o));
+            deflater.reset();
+            deflater.setInput(raw.duplicate());
+            deflater.finish();
+            while (!deflater.finished() && compressed.hasRemaining()) {
+                deflater.deflate(compressed);
+            }
+            if (!deflater.finished() || !compressed.hasRemaining()) {
+                return raw;
             }
+            compressed.flip();
+            return compressed;
+        }
 
-            fileChannel.write(Bytes.fromInt(offsets.size()));
+        private void write(@NotNull final ByteBuffer buffer) throws IOException {
+            written += buffer.remaining();
+            if (buffer.remaining() <= out.remaining()) {
+                out.put(buffer);
+            } else {
+                // не влезло: накопленное и новое уходят в файл одним gathering write'ом, без копирования
+                drain(buffer);
+            }
+        }
+
+        // отдает в канал накопленное в выходном буфере, а затем tail
+        private void drain(@Nullable final ByteBuffer tail) throws IOException {
+            out.flip();
+            if (tail == null) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            } else {
+                final ByteBuffer[] buffers = {out, tail};
+                while (tail.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+            out.clear();
+        }
+
+        private static ByteBuffer ensureCapacity(@NotNull final ByteBuffer buffer, final int needed) {
+            if (buffer.remaining() >= needed) {
+                return buffer;
+            }
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+            buffer.flip();
+            grown.put(buffer);
+            return grown;
         }
     }
 }
@@ -0,0 +1,64 @@
+package ru.mail.polis.boriskin;
+
+/**
+ * Политика сброса write-ahead log'а на диск (fsync).
+ *
+ * <ul>
+ *     <li>{@link #always()} -- upsert/remove возвращают управление только после fsync'а,
+ *     при этом fsync'и одновременных пишущих потоков объединяются (group commit);</li>
+ *     <li>{@link #periodic(long)} -- fsync раз в заданное число миллисекунд,
+ *     при падении машины теряется не больше этого окна;</li>
+ *     <li>{@link #none()} -- fsync только при закрытии,
+ *     записи переживают падение процесса, но не машины.</li>
+ * </ul>
+ */
+public final class SyncPolicy {
+
+    enum Mode {
+        ALWAYS,
+        PERIODIC,
+        NONE
+    }
+
+    private final Mode mode;
+    private final long periodMillis;
+
+    private SyncPolicy(final Mode mode, final long periodMillis) {
+        this.mode = mode;
+        this.periodMillis = periodMillis;
+    }
+
+    public static SyncPolicy always() {
+        return new SyncPolicy(Mode.ALWAYS, 0L);
+    }
+
+    /**
+     * Периодический fsync.
+     *
+     * @param periodMillis период в миллисекундах
+     * @return политика
+     */
+    public static SyncPolicy periodic(final long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Период должен быть положительным: " + periodMillis);
+        }
+        return new SyncPolicy(Mode.PERIODIC, periodMillis);
+    }
+
+    public static SyncPolicy none() {
+        return new SyncPolicy(Mode.NONE, 0L);
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.PERIODIC ? mode + "(" + periodMillis + " ms)" : mode.toString();
+    }
+}
@@ -1,10 +1,10 @@
 package ru.mail.polis.boriskin;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
 
 /**
  * В данном задании реализация осуществляется согласно структуре, представленной в конце лекции.
@@ -15,8 +15,37 @@ public interface Table {
 
     long getSize();
 
+    /**
+     * Курсор по ячейкам таблицы, включая могилки.
+     *
+     * @param point с какого ключа читать
+     * @return курсор, стоящий на первом ключе не меньше point
+     */
     @NotNull
-    Iterator<TableCell> iterator(@NotNull ByteBuffer point) throws IOException;
+    default Cursor cursor(@NotNull ByteBuffer point) throws IOException {
+        return cursor(point, null, false);
+    }
+
+    /**
+     * Курсор по ячейкам таблицы с ключами из [from, to), включая могилки.
+     * Границы проверяет сама таблица, так что курсор не читает ничего за ними.
+     *
+     * @param from нижняя граница (включительно)
+     * @param to верхняя граница (не включительно); null -- до конца таблицы
+     * @param descending в порядке убывания ключей: курсор стоит на последнем ключе меньше to
+     * @return курсор, стоящий на первой ячейке диапазона в своем порядке
+     */
+    @NotNull
+    Cursor cursor(@NotNull ByteBuffer from, @Nullable ByteBuffer to, boolean descending) throws IOException;
+
+    /**
+     * Точечный поиск без мерджа с другими таблицами.
+     *
+     * @param key искомый ключ
+     * @return значение по этому ключу (возможно, могилка) или null, если ключа в таблице нет
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key) throws IOException;
 
     void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer val) throws IOException;
 
@@ -0,0 +1,162 @@
+package ru.mail.polis.boriskin;
+
+/**
+ * Настройки таблиц (как BlockBasedTableOptions в RocksDB).
+ * Как записывать новые SSTable'ы: размер блока данных, частота точек перезапуска в блоке и сжатие блоков --
+ * уже записанные таблицы читаются независимо от этих настроек.
+ * Как читать: размер общего кэша прочитанных блоков и по сколько байт отображать файлы таблиц в память.
+ * Где держать MemTable: в куче или вне ее.
+ */
+public final class TableOptions {
+    private static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    private static final int DEFAULT_RESTART_INTERVAL = 16;
+    private static final long DEFAULT_BLOCK_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final long DEFAULT_MAPPED_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private final int blockSize;
+    private final int restartInterval;
+    private final boolean compression;
+    private final long blockCacheSize;
+    private final boolean offHeapMemTable;
+    private final long mappedSegmentSize;
+
+    private TableOptions(final int blockSize,
+                         final int restartInterval,
+                         final boolean compression,
+                         final long blockCacheSize,
+                         final boolean offHeapMemTable,
+                         final long mappedSegmentSize) {
+        this.blockSize = blockSize;
+        this.restartInterval = restartInterval;
+        this.compression = compression;
+        this.blockCacheSize = blockCacheSize;
+        this.offHeapMemTable = offHeapMemTable;
+        this.mappedSegmentSize = mappedSegmentSize;
+    }
+
+    // блоки по 4 KB с полным ключом у каждой 16-й ячейки, без сжатия; кэш блоков на 8 MB; MemTable в куче;
+    // файлы таблиц отображаются в память кусками по 1 GB
+    public static TableOptions defaults() {
+        return new TableOptions(DEFAULT_BLOCK_SIZE, DEFAULT_RESTART_INTERVAL, false, DEFAULT_BLOCK_CACHE_SIZE, false,
+                DEFAULT_MAPPED_SEGMENT_SIZE);
+    }
+
+    /**
+     * Размер блока данных.
+     *
+     * @param blockSize после скольких байт ячеек начинать новый блок
+     * @return настройки
+     */
+    public TableOptions withBlockSize(final int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Размер блока должен быть положительным: " + blockSize);
+        }
+        return new TableOptions(blockSize, restartInterval, compression, blockCacheSize, offHeapMemTable,
+                mappedSegmentSize);
+    }
+
+    /**
+     * Как часто ключ хранится целиком, а не относительно предыдущего.
+     * Чем реже, тем меньше места занимают ключи с общим префиксом,
+     * но тем дольше линейный поиск внутри блока.
+     *
+     * @param restartInterval через сколько ячеек ставить точку перезапуска
+     * @return настройки
+     */
+    public TableOptions withRestartInterval(final int restartInterval) {
+        if (restartInterval <= 0) {
+            throw new IllegalArgumentException("Интервал должен быть положительным: " + restartInterval);
+        }
+        return new TableOptions(blockSize, restartInterval, compression, blockCacheSize, offHeapMemTable,
+                mappedSegmentSize);
+    }
+
+    /**
+     * Сжатие блоков через {@link java.util.zip.Deflater}.
+     * Блок, который не удалось сжать, хранится как есть.
+     *
+     * @param compression сжимать ли блоки
+     * @return настройки
+     */
+    public TableOptions withCompression(final boolean compression) {
+        return new TableOptions(blockSize, restartInterval, compression, blockCacheSize, offHeapMemTable,
+                mappedSegmentSize);
+    }
+
+    /**
+     * Размер общего кэша прочитанных блоков.
+     *
+     * @param blockCacheSize сколько байт блоков держать в кэше; 0 -- не кэшировать
+     * @return настройки
+     */
+    public TableOptions withBlockCacheSize(final long blockCacheSize) {
+        if (blockCacheSize < 0) {
+            throw new IllegalArgumentException("Размер кэша не может быть отрицательным: " + blockCacheSize);
+        }
+        return new TableOptions(blockSize, restartInterval, compression, blockCacheSize, offHeapMemTable,
+                mappedSegmentSize);
+    }
+
+    /**
+     * По сколько байт отображать данные таблицы в память.
+     * Один {@link java.nio.MappedByteBuffer} не больше 2 GB, поэтому большая таблица отображается кусками,
+     * каждый из которых содержит целое число блоков.
+     *
+     * @param mappedSegmentSize размер куска, не больше {@link Integer#MAX_VALUE};
+     *                          блок больше этого размера все равно лежит в одном куске
+     * @return настройки
+     */
+    public TableOptions withMappedSegmentSize(final long mappedSegmentSize) {
+        if (mappedSegmentSize <= 0 || mappedSegmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Размер куска должен быть от 1 байта до 2 GB: " + mappedSegmentSize);
+        }
+        return new TableOptions(blockSize, restartInterval, compression, blockCacheSize, offHeapMemTable,
+                mappedSegmentSize);
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getRestartInterval() {
+        return restartInterval;
+    }
+
+    boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * MemTable вне кучи ({@link ArenaMemTable}): ключи и значения копируются в большие slab'ы,
+     * так что большой MemTable не нагружает сборщик мусора,
+     * а порог сброса сравнивается с реально занятой памятью.
+     * Память сброшенных MemTable'ов переходит к новым, а помещаться они должны в -XX:MaxDirectMemorySize
+     * (см. {@link DBOptions}).
+     *
+     * @param offHeapMemTable держать ли MemTable вне кучи
+     * @return настройки
+     */
+    public TableOptions withOffHeapMemTable(final boolean offHeapMemTable) {
+        return new TableOptions(blockSize, restartInterval, compression, blockCacheSize, offHeapMemTable,
+                mappedSegmentSize);
+    }
+
+    long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    boolean isOffHeapMemTable() {
+        return offHeapMemTable;
+    }
+
+    long getMappedSegmentSize() {
+        return mappedSegmentSize;
+    }
+
+    @Override
+    public String toString() {
+        return "block " + blockSize + " bytes, restart every " + restartInterval
+                + (compression ? ", deflate" : "") + ", cache " + blockCacheSize + " bytes"
+                + (offHeapMemTable ? ", off-heap memtable" : "") + ", mapped by " + mappedSegmentSize + " bytes";
+    }
+}
@@ -0,0 +1,114 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Неизменяемый слепок набора таблиц {@link NewDAO}:
+ * текущий MemTable, замороженные MemTable'ы, ожидающие сброса на диск,
+ * и SSTable'ы на диске (по номеру поколения).
+ * Любое изменение набора порождает новый экземпляр,
+ * который атомарно подменяет предыдущий.
+ */
+final class TableSet {
+
+    @NotNull
+    final MutableTable mem;
+    @NotNull
+    final NavigableMap<Integer, MutableTable> flushing;
+    @NotNull
+    final NavigableMap<Integer, SortedStringTable> ssTables;
+    // следующее свободное поколение
+    final int gen;
+
+    private TableSet(@NotNull final MutableTable mem,
+                     @NotNull final NavigableMap<Integer, MutableTable> flushing,
+                     @NotNull final NavigableMap<Integer, SortedStringTable> ssTables,
+                     final int gen) {
+        assert gen >= 0;
+        this.mem = mem;
+        this.flushing = Collections.unmodifiableNavigableMap(flushing);
+        this.ssTables = Collections.unmodifiableNavigableMap(ssTables);
+        this.gen = gen;
+    }
+
+    static TableSet of(@NotNull final MutableTable mem,
+                       @NotNull final NavigableMap<Integer, SortedStringTable> ssTables,
+                       final int gen) {
+        return new TableSet(mem, new TreeMap<>(), new TreeMap<>(ssTables), gen);
+    }
+
+    /**
+     * Тот же набор без текущего MemTable'а: в нем остаются только неизменяемые таблицы.
+     *
+     * @return новый набор таблиц
+     */
+    TableSet withoutMemTable() {
+        return new TableSet(new MemTable(), flushing, ssTables, gen);
+    }
+
+    /**
+     * Замораживает текущий MemTable под поколением {@link #gen}
+     * и заводит вместо него новый пустой.
+     *
+     * @param empty новый MemTable
+     * @return новый набор таблиц
+     */
+    TableSet markAsFlushing(@NotNull final MutableTable empty) {
+        final NavigableMap<Integer, MutableTable> newFlushing = new TreeMap<>(flushing);
+        newFlushing.put(gen, mem);
+        return new TableSet(empty, newFlushing, ssTables, gen + 1);
+    }
+
+    /**
+     * Подменяет сброшенный на диск MemTable поколения gen на получившийся SSTable.
+     *
+     * @return новый набор таблиц
+     */
+    TableSet moveToFlushed(final int gen, @NotNull final SortedStringTable ssTable) {
+        final NavigableMap<Integer, MutableTable> newFlushing = new TreeMap<>(flushing);
+        newFlushing.remove(gen);
+        final NavigableMap<Integer, SortedStringTable> newSSTables = new TreeMap<>(ssTables);
+        newSSTables.put(gen, ssTable);
+        return new TableSet(mem, newFlushing, newSSTables, this.gen);
+    }
+
+    /**
+     * Резервирует поколение {@link #gen} под результат compaction'а.
+     *
+     * @return новый набор таблиц
+     */
+    TableSet allocateGeneration() {
+        return new TableSet(mem, flushing, ssTables, gen + 1);
+    }
+
+    /**
+     * Добавляет SSTable'ы, записанные в обход MemTable'а, под уже зарезервированными поколениями.
+     *
+     * @return новый набор таблиц
+     */
+    TableSet addTables(@NotNull final Map<Integer, SortedStringTable> added) {
+        final NavigableMap<Integer, SortedStringTable> newSSTables = new TreeMap<>(ssTables);
+        newSSTables.putAll(added);
+        return new TableSet(mem, flushing, newSSTables, this.gen);
+    }
+
+    /**
+     * Подменяет сжатые SSTable'ы на результаты compaction'а.
+     * SSTable'ы, появившиеся после начала compaction'а, остаются на месте.
+     *
+     * @return новый набор таблиц
+     */
+    TableSet replaceCompacted(@NotNull final Collection<Integer> compacted,
+                              @NotNull final Map<Integer, SortedStringTable> results) {
+        final NavigableMap<Integer, SortedStringTable> newSSTables = new TreeMap<>(ssTables);
+        newSSTables.keySet().removeAll(compacted);
+        newSSTables.putAll(results);
+        return new TableSet(mem, flushing, newSSTables, this.gen);
+    }
+}
@@ -0,0 +1,176 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Сводка о SSTable: уровень, размер, число ячеек и могилок, диапазоны версий и ключей.
+ * Лежит и в метаданных самой таблицы, и в {@link Manifest}'е,
+ * так что по ней таблицу можно пропустить при чтении, даже не открывая ее файла,
+ * а таблицу, в которой много старых могилок, -- сжать отдельно, чтобы от них избавиться.
+ *
+ * <p>В манифесте: [уровень (int)][размер (long)][число ячеек (int)]
+ * [число могилок (int)][минимальная версия (long)][максимальная версия (long)]
+ * [длина первого ключа (int)][первый ключ][длина последнего ключа (int)][последний ключ]
+ * [версия самой старой могилки (long)];
+ * длина -1 -- ключа нет (таблица пуста).
+ */
+final class TableSummary {
+    // таблица версии 0: в ее файле поля нет
+    static final int UNKNOWN = -1;
+
+    private final int level;
+    private final long size;
+    private final int rows;
+    private final int tombstones;
+    private final long minTimeStamp;
+    private final long maxTimeStamp;
+    // Long.MAX_VALUE -- могилок нет
+    private final long oldestTombstone;
+    // null у пустой таблицы
+    @Nullable
+    private final ByteBuffer minKey;
+    @Nullable
+    private final ByteBuffer maxKey;
+
+    TableSummary(final int level,
+                 final long size,
+                 final int rows,
+                 final int tombstones,
+                 final long minTimeStamp,
+                 final long maxTimeStamp,
+                 final long oldestTombstone,
+                 @Nullable final ByteBuffer minKey,
+                 @Nullable final ByteBuffer maxKey) {
+        this.level = level;
+        this.size = size;
+        this.rows = rows;
+        this.tombstones = tombstones;
+        this.minTimeStamp = minTimeStamp;
+        this.maxTimeStamp = maxTimeStamp;
+        this.oldestTombstone = oldestTombstone;
+        this.minKey = minKey == null ? null : copy(minKey);
+        this.maxKey = maxKey == null ? null : copy(maxKey);
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    // UNKNOWN у таблиц версии 0
+    long getMinTimeStamp() {
+        return minTimeStamp;
+    }
+
+    // UNKNOWN у таблиц версии 0
+    long getMaxTimeStamp() {
+        return maxTimeStamp;
+    }
+
+    // версия самой старой могилки; Long.MAX_VALUE -- могилок нет, UNKNOWN -- таблица версии 0
+    long getOldestTombstone() {
+        return oldestTombstone;
+    }
+
+    /**
+     * Доля могилок среди ячеек таблицы.
+     *
+     * @return от 0 до 1; 0, если число могилок неизвестно
+     */
+    double getTombstoneRatio() {
+        return rows <= 0 || tombstones <= 0 ? 0.0 : (double) tombstones / rows;
+    }
+
+    @Nullable
+    ByteBuffer getMinKey() {
+        return minKey == null ? null : minKey.duplicate();
+    }
+
+    @Nullable
+    ByteBuffer getMaxKey() {
+        return maxKey == null ? null : maxKey.duplicate();
+    }
+
+    // может ли в таблице быть такой ключ
+    boolean mayContain(@NotNull final ByteBuffer key) {
+        return minKey != null && minKey.compareTo(key) <= 0 && maxKey.compareTo(key) >= 0;
+    }
+
+    /**
+     * Может ли в таблице быть ключ из [from, to).
+     *
+     * @param to граница; null -- до конца
+     */
+    boolean intersects(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return minKey != null && maxKey.compareTo(from) >= 0 && (to == null || minKey.compareTo(to) < 0);
+    }
+
+    int serializedSize() {
+        final int keys = minKey == null ? 0 : minKey.remaining() + maxKey.remaining();
+        return Integer.BYTES + Long.BYTES + Integer.BYTES
+                + Integer.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES + keys;
+    }
+
+    void writeTo(@NotNull final ByteBuffer out) {
+        out.putInt(level);
+        out.putLong(size);
+        out.putInt(rows);
+        out.putInt(tombstones);
+        out.putLong(minTimeStamp);
+        out.putLong(maxTimeStamp);
+        putKey(out, minKey);
+        putKey(out, maxKey);
+        out.putLong(oldestTombstone);
+    }
+
+    // сводка из записи манифеста
+    static TableSummary readFrom(@NotNull final ByteBuffer in) {
+        final int level = in.getInt();
+        final long size = in.getLong();
+        final int rows = in.getInt();
+        final int tombstones = in.getInt();
+        final long minTimeStamp = in.getLong();
+        final long maxTimeStamp = in.getLong();
+        final ByteBuffer minKey = getKey(in);
+        final ByteBuffer maxKey = getKey(in);
+        final long oldestTombstone = in.getLong();
+        return new TableSummary(level, size, rows, tombstones, minTimeStamp, maxTimeStamp, oldestTombstone,
+                minKey, maxKey);
+    }
+
+    private static void putKey(@NotNull final ByteBuffer out, @Nullable final ByteBuffer key) {
+        if (key == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(key.remaining());
+            Bytes.put(out, key);
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer getKey(@NotNull final ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final ByteBuffer key = in.slice();
+        key.limit(length);
+        in.position(in.position() + length);
+        return key;
+    }
+
+    // ключ не должен держать отображенный файл или чужой буфер
+    private static ByteBuffer copy(@NotNull final ByteBuffer key) {
+        final ByteBuffer result = ByteBuffer.allocate(key.remaining());
+        Bytes.put(result, key);
+        result.flip();
+        return result;
+    }
+
+}
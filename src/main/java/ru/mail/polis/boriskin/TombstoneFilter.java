@@ -0,0 +1,31 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Какие могилки {@link MergeCursor} может выбросить вместе со всеми более старыми версиями их ключей.
+ * Читателям могилки не нужны вовсе, а compaction выбрасывает только те,
+ * что пережили grace period и не закрывают более старых версий в таблицах, которые он не сжимает.
+ */
+interface TombstoneFilter {
+    // все могилки
+    TombstoneFilter ALL = (key, timeStamp) -> true;
+    // ни одной
+    TombstoneFilter NONE = (key, timeStamp) -> false;
+
+    /**
+     * Можно ли выбросить самую свежую версию ключа -- могилку.
+     *
+     * @param key представление ключа; действительно только во время вызова
+     * @param timeStamp версия могилки
+     */
+    boolean canDrop(@NotNull ByteBuffer key, long timeStamp) throws IOException;
+
+    // только могилки старше версии horizon
+    static TombstoneFilter olderThan(final long horizon) {
+        return (key, timeStamp) -> timeStamp < horizon;
+    }
+}
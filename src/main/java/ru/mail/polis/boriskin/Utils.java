@@ -1,11 +1,12 @@
 package ru.mail.polis.boriskin;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 final class Utils {
-    private static long time;
-    // обогащение
-    private static int counter;
+    // последняя выданная отметка времени;
+    // при совпадении миллисекунд "обогащаем" ее счетчиком
+    private static final AtomicLong time = new AtomicLong();
 
     private Utils() {
         // do nothing
@@ -13,10 +14,14 @@ final class Utils {
 
     static long getTime() {
         final long currentTime = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
-        if (currentTime != time) {
-            time = currentTime;
-            counter = 0;
-        }
-        return currentTime + counter++;
+        // строго монотонно даже при одновременных вызовах из разных потоков
+        return time.updateAndGet(prev -> Math.max(prev + 1, currentTime));
+    }
+
+    // count подряд идущих отметок, никому больше не выданных; возвращает первую из них
+    static long getTimes(final int count) {
+        assert count > 0;
+        final long currentTime = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        return time.updateAndGet(prev -> Math.max(prev + count, currentTime + count - 1)) - count + 1;
     }
 }
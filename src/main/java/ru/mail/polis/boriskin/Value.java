@@ -48,6 +48,11 @@ public final class Value implements Comparable<Value> {
         return data.asReadOnlyBuffer();
     }
 
+    // сами данные, без копии -- для представлений курсора
+    ByteBuffer data() {
+        return data;
+    }
+
     static Value tombstone() {
         // у могилки есть версия - тот же Time Stamp
         return new Value(Utils.getTime(), null);
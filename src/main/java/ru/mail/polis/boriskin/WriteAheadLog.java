@@ -0,0 +1,349 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log для MemTable'ов.
+ * Лог состоит из сегментов: в текущий сегмент дописываются все изменения текущего MemTable,
+ * при заморозке MemTable'а сегмент закрывается ({@link #rotate()}),
+ * а после того как таблица надежно легла на диск, его можно удалить ({@link #truncate(int)}).
+ *
+ * <p>Формат записи: [длина][CRC32][ячейки: ключ, версия и значение в том же виде, что и в SSTable].
+ * Отдельное изменение -- запись из одной ячейки, пакет ({@link #append(ByteBuffer[], Value[])}) -- из нескольких,
+ * так что пакет восстанавливается целиком или не восстанавливается вовсе:
+ * оборванная при падении последняя запись отбрасывается при восстановлении.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String NAME = "WriteAheadLOG";
+    private static final String LOG = ".log";
+    private static final int HEADER = Integer.BYTES + Integer.BYTES;
+
+    private final File base;
+    private final SyncPolicy policy;
+    private final ScheduledExecutorService syncer;
+
+    // порядок захвата: syncLock, затем appendLock
+    private final Object syncLock = new Object();
+    private final Object appendLock = new Object();
+
+    // guarded by appendLock
+    private FileChannel channel;
+    private int segment;
+    private long appended;
+    private boolean dirty;
+
+    // guarded by syncLock
+    private long synced;
+
+    private WriteAheadLog(@NotNull final File base,
+                          @NotNull final SyncPolicy policy,
+                          final int segment) throws IOException {
+        this.base = base;
+        this.policy = policy;
+        this.segment = segment;
+        this.channel = openSegment(segment);
+
+        if (policy.getMode() == SyncPolicy.Mode.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "wal-syncer-" + base.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(
+                    this::periodicSync,
+                    policy.getPeriodMillis(),
+                    policy.getPeriodMillis(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    /**
+     * Проигрывает найденные в папке сегменты в переданный MemTable
+     * и открывает новый сегмент для последующих записей.
+     *
+     * @param base папка с данными
+     * @param policy политика fsync'а
+     * @param target таблица, в которую восстанавливаются записи
+     * @return открытый лог
+     * @throws IOException при ошибке чтения сегментов или создания нового
+     */
+    static WriteAheadLog open(@NotNull final File base,
+                              @NotNull final SyncPolicy policy,
+                              @NotNull final MutableTable target) throws IOException {
+        final NavigableMap<Integer, File> segments = listSegments(base);
+        for (final File file : segments.values()) {
+            replay(file, target);
+        }
+
+        final int next = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        return new WriteAheadLog(base, policy, next);
+    }
+
+    /**
+     * Дописывает изменение в текущий сегмент.
+     *
+     * @return порядковый номер записи для {@link #sync(long)}
+     */
+    long append(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + cellSize(key, value));
+        record.position(HEADER);
+        putCell(record, key, value);
+        return write(seal(record));
+    }
+
+    /**
+     * Дописывает пакет изменений одной записью.
+     *
+     * @return порядковый номер записи для {@link #sync(long)}
+     */
+    long append(@NotNull final ByteBuffer[] keys, @NotNull final Value[] values) throws IOException {
+        int payload = 0;
+        for (int i = 0; i < keys.length; i++) {
+            payload += cellSize(keys[i], values[i]);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + payload);
+        record.position(HEADER);
+        for (int i = 0; i < keys.length; i++) {
+            putCell(record, keys[i], values[i]);
+        }
+        return write(seal(record));
+    }
+
+    private long write(@NotNull final ByteBuffer record) throws IOException {
+        synchronized (appendLock) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            dirty = true;
+            return ++appended;
+        }
+    }
+
+    /**
+     * Дожидается, пока запись с данным номером окажется на диске, если этого требует политика.
+     * Пока один поток делает fsync, остальные ждут на syncLock,
+     * после чего обычно обнаруживают, что их записи уже сброшены вместе с чужими.
+     */
+    void sync(final long seq) throws IOException {
+        if (policy.getMode() != SyncPolicy.Mode.ALWAYS) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= seq) {
+                return;
+            }
+            forceAll();
+        }
+    }
+
+    /**
+     * Закрывает текущий сегмент и начинает новый.
+     * Вызывается при заморозке MemTable'а, пока в лог никто не пишет.
+     *
+     * @return номер закрытого сегмента
+     */
+    int rotate() throws IOException {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                if (policy.getMode() != SyncPolicy.Mode.NONE) {
+                    channel.force(false);
+                }
+                synced = appended;
+                channel.close();
+
+                final int closed = segment;
+                segment++;
+                channel = openSegment(segment);
+                dirty = false;
+                return closed;
+            }
+        }
+    }
+
+    /**
+     * Удаляет все сегменты до данного включительно:
+     * их содержимое уже лежит на диске в SSTable'ах.
+     */
+    void truncate(final int upTo) throws IOException {
+        for (final File file : listSegments(base).headMap(upTo, true).values()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                channel.force(false);
+                channel.close();
+                // пустой сегмент восстанавливать незачем
+                if (!dirty) {
+                    Files.delete(segmentFile(segment).toPath());
+                }
+            }
+        }
+    }
+
+    private void periodicSync() {
+        synchronized (syncLock) {
+            try {
+                forceAll();
+            } catch (IOException ex) {
+                log.error("Не удалось сбросить write-ahead log на диск", ex);
+            }
+        }
+    }
+
+    // guarded by syncLock
+    private void forceAll() throws IOException {
+        final long target;
+        final FileChannel current;
+        synchronized (appendLock) {
+            target = appended;
+            current = channel;
+        }
+        if (synced >= target) {
+            return;
+        }
+        // сегмент не может закрыться под нами: ротация тоже берет syncLock
+        current.force(false);
+        synced = target;
+    }
+
+    private FileChannel openSegment(final int segment) throws IOException {
+        return FileChannel.open(segmentFile(segment).toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+    }
+
+    private File segmentFile(final int segment) {
+        return new File(base, NAME + segment + LOG);
+    }
+
+    private static NavigableMap<Integer, File> listSegments(@NotNull final File base) throws IOException {
+        final NavigableMap<Integer, File> segments = new TreeMap<>();
+        final File[] files = base.listFiles();
+        if (files == null) {
+            throw new IOException("Не удалось прочитать папку: " + base);
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!file.isFile() || !name.startsWith(NAME) || !name.endsWith(LOG)) {
+                continue;
+            }
+            final String number = name.substring(NAME.length(), name.length() - LOG.length());
+            if (!number.isEmpty() && number.length() <= 9 && number.chars().allMatch(Character::isDigit)) {
+                segments.put(Integer.parseInt(number), file);
+            }
+        }
+        return segments;
+    }
+
+    private static int cellSize(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        return Integer.BYTES + key.remaining() + Long.BYTES
+                + (value.wasRemoved() ? 0 : Integer.BYTES + value.data().remaining());
+    }
+
+    private static void putCell(@NotNull final ByteBuffer record,
+                                @NotNull final ByteBuffer key,
+                                @NotNull final Value value) {
+        record.putInt(key.remaining());
+        Bytes.put(record, key);
+        // как и в SSTable, могилка -- это отрицательная версия
+        if (value.wasRemoved()) {
+            record.putLong(-value.getTimeStamp());
+        } else {
+            final ByteBuffer data = value.data();
+            record.putLong(value.getTimeStamp());
+            record.putInt(data.remaining());
+            Bytes.put(record, data);
+        }
+    }
+
+    // заполняет заголовок записи, ячейки которой уже лежат после него
+    private static ByteBuffer seal(@NotNull final ByteBuffer record) {
+        final int payload = record.position() - HEADER;
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER, payload);
+        record.putInt(0, payload);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.rewind();
+        return record;
+    }
+
+    private static void replay(@NotNull final File file, @NotNull final MutableTable target) throws IOException {
+        final ByteBuffer data;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            data = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0L, fileChannel.size());
+        }
+
+        int records = 0;
+        final CRC32 crc = new CRC32();
+        while (data.remaining() >= HEADER) {
+            final int payload = data.getInt();
+            final int checksum = data.getInt();
+            if (payload <= 0 || payload > data.remaining()) {
+                break;
+            }
+
+            final ByteBuffer record = data.slice();
+            record.limit(payload);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            data.position(data.position() + payload);
+
+            while (record.hasRemaining()) {
+                final ByteBuffer key = copy(record, record.getInt());
+                final long timeStamp = record.getLong();
+                if (timeStamp < 0) {
+                    target.put(key, new Value(-timeStamp, null));
+                } else {
+                    target.put(key, new Value(timeStamp, copy(record, record.getInt())));
+                }
+            }
+            records++;
+        }
+
+        if (data.hasRemaining()) {
+            log.warn("Отброшен оборванный хвост write-ahead log'а {}: {} байт", file, data.remaining());
+        }
+        log.info("Из {} восстановлено записей: {}", file, records);
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer from, final int size) {
+        final ByteBuffer src = from.duplicate();
+        src.limit(src.position() + size);
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        result.put(src);
+        result.rewind();
+        from.position(from.position() + size);
+        return result;
+    }
+}
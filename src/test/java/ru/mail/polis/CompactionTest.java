@@ -18,12 +18,17 @@ package ru.mail.polis;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+import ru.mail.polis.boriskin.SyncPolicy;
+import ru.mail.polis.boriskin.TableOptions;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -171,4 +176,109 @@ class CompactionTest extends TestBase {
         // Heuristic
         assertTrue(size < valueSize);
     }
+
+    @Test
+    void background(@TempDir File data) throws IOException {
+        final int sessions = 16;
+        final ByteBuffer overwritten = randomKey();
+        final ByteBuffer removed = randomKey();
+        final Collection<ByteBuffer> keys = new ArrayList<>(sessions);
+
+        // Every session leaves one more small SSTable behind
+        for (int i = 0; i < sessions; i++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, join(key, key));
+                keys.add(key);
+                dao.upsert(overwritten, ByteBuffer.wrap(new byte[]{(byte) i}));
+                if (i % 2 == 0) {
+                    dao.upsert(removed, randomValue());
+                } else {
+                    dao.remove(removed);
+                }
+            }
+        }
+
+        // Nobody called compact(), but the tables have been merged anyway
+        final String[] tables = data.list((dir, name) -> name.endsWith(".db"));
+        assertNotNull(tables);
+        assertTrue(tables.length < sessions / 2);
+
+        // Check the contents
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(join(key, key), dao.get(key));
+            }
+            assertEquals(ByteBuffer.wrap(new byte[]{(byte) (sessions - 1)}), dao.get(overwritten));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void parallel(@TempDir File data) throws IOException {
+        final int sessions = 3;
+        final int records = 2_000;
+        final int threads = 4;
+        // Tiny blocks give the key space enough samples to be split between threads
+        final TableOptions options = TableOptions.defaults().withBlockSize(64);
+
+        // Overlapping sessions: later ones overwrite and remove some keys of earlier ones
+        for (int session = 0; session < sessions; session++) {
+            try (DAO dao = open(data, options, threads)) {
+                for (int i = session; i < records; i += 2) {
+                    dao.upsert(key(i), value(i, session));
+                }
+                if (session > 0) {
+                    for (int i = 0; i < records; i += 5) {
+                        dao.remove(key(i));
+                    }
+                }
+            }
+        }
+
+        try (DAO dao = open(data, options, threads)) {
+            dao.compact();
+            checkParallel(dao, sessions, records);
+        }
+
+        // Every range went to its own table
+        final String[] tables = data.list((dir, name) -> name.endsWith(".db"));
+        assertNotNull(tables);
+        assertTrue(tables.length > 1);
+
+        // The same contents after reopening, and no tombstones left behind
+        try (DAO dao = open(data, options, 1)) {
+            checkParallel(dao, sessions, records);
+        }
+    }
+
+    private static void checkParallel(final DAO dao, final int sessions, final int records) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < records; i++) {
+            final ByteBuffer key = key(i);
+            if (i % 5 == 0) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                continue;
+            }
+            // The last session that wrote the key
+            int session = sessions - 1;
+            while (session % 2 != i % 2) {
+                session--;
+            }
+            assertEquals(value(i, session), dao.get(key));
+            final Record record = iterator.next();
+            assertEquals(key, record.getKey());
+            assertEquals(value(i, session), record.getValue());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static NewDAO open(final File data, final TableOptions options, final int threads) throws IOException {
+        return new NewDAO(data, DBOptions.defaults()
+                .withMemTableSize(Long.MAX_VALUE)
+                .withMaxFlushQueueSize(1)
+                .withSyncPolicy(SyncPolicy.none())
+                .withTableOptions(options)
+                .withCompactionThreads(threads));
+    }
 }
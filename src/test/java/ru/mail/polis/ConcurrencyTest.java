@@ -0,0 +1,173 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+import ru.mail.polis.boriskin.SyncPolicy;
+import ru.mail.polis.boriskin.TableOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks {@link DAO} under concurrent writers and readers.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int RECORDS_PER_THREAD = 2_000;
+
+    @Test
+    void concurrentUpserts(@TempDir File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentHashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        try (DAO dao = DAOFactory.create(data)) {
+            final Collection<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                        assertEquals(value, dao.get(key));
+                    }
+                    return null;
+                }));
+            }
+
+            // Scan while flushes are in progress
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 10; i++) {
+                    ByteBuffer prev = null;
+                    final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+                    while (iterator.hasNext()) {
+                        final ByteBuffer key = iterator.next().getKey();
+                        assertTrue(prev == null || prev.compareTo(key) < 0);
+                        prev = key;
+                    }
+                }
+                return null;
+            }));
+
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+
+            checkContents(dao, expected);
+        } finally {
+            executor.shutdown();
+        }
+
+        // Check that nothing was lost on flush
+        try (DAO dao = DAOFactory.create(data)) {
+            checkContents(dao, expected);
+        }
+    }
+
+    @Test
+    void concurrentOverwrites(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (DAO dao = DAOFactory.create(data)) {
+            final Collection<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                        dao.upsert(key, randomValue());
+                        dao.get(key);
+                    }
+                    return null;
+                }));
+            }
+
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(key, iterator.next().getKey());
+            assertFalse(iterator.hasNext());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void offHeapMemTable(@TempDir File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentHashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        // Small memtables, so that arenas are flushed and dropped while writers keep going
+        final DBOptions options = DBOptions.defaults()
+                .withMemTableSize(256 * 1024)
+                .withMaxFlushQueueSize(1)
+                .withSyncPolicy(SyncPolicy.none())
+                .withTableOptions(TableOptions.defaults().withOffHeapMemTable(true));
+        try (DAO dao = new NewDAO(data, options)) {
+            final Collection<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    final ByteBuffer[] keys = new ByteBuffer[RECORDS_PER_THREAD / 4];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = randomKey();
+                    }
+                    for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                        final ByteBuffer key = keys[i % keys.length];
+                        if (i % 7 == 0) {
+                            dao.remove(key);
+                            expected.remove(key);
+                            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                        } else {
+                            final ByteBuffer value = randomValue();
+                            dao.upsert(key, value);
+                            expected.put(key, value);
+                            assertEquals(value, dao.get(key));
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+
+            checkContents(dao, expected);
+        } finally {
+            executor.shutdown();
+        }
+
+        // Replayed into the heap memtable
+        try (DAO dao = DAOFactory.create(data)) {
+            checkContents(dao, expected);
+        }
+    }
+
+    private static void checkContents(
+            final DAO dao,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+
+        int count = 0;
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(expected.size(), count);
+    }
+}
@@ -0,0 +1,144 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+import ru.mail.polis.boriskin.Snapshot;
+import ru.mail.polis.boriskin.SyncPolicy;
+import ru.mail.polis.boriskin.TableOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks bounded ascending and descending scans over memtables, frozen memtables and tables of every kind.
+ */
+class DescendingRangeTest extends TestBase {
+    private static final int KEYS = 3_000;
+    private static final int CHECKS = 300;
+
+    @Test
+    void heapMemTable(@TempDir File data) throws IOException {
+        check(data, TableOptions.defaults().withBlockSize(256));
+    }
+
+    @Test
+    void offHeapMemTable(@TempDir File data) throws IOException {
+        check(data, TableOptions.defaults().withBlockSize(256).withOffHeapMemTable(true));
+    }
+
+    @Test
+    void fullKeys(@TempDir File data) throws IOException {
+        check(data, TableOptions.defaults().withBlockSize(256).withRestartInterval(1));
+    }
+
+    @Test
+    void latestBeforeKey(@TempDir File data) throws IOException {
+        try (NewDAO dao = new NewDAO(data, DBOptions.defaults())) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(key(i), value(i, 0));
+            }
+            dao.remove(key(48));
+
+            // The last three records before key 50
+            final Iterator<Record> latest = dao.descendingRange(ByteBuffer.allocate(0), key(50));
+            for (final int i : new int[]{49, 47, 46}) {
+                assertEquals(key(i), latest.next().getKey());
+            }
+
+            assertFalse(dao.range(key(60), key(50)).hasNext());
+            assertFalse(dao.descendingRange(key(60), key(50)).hasNext());
+            assertFalse(dao.descendingRange(key(50), key(50)).hasNext());
+            assertEquals(key(99), dao.descendingRange(ByteBuffer.allocate(0), null).next().getKey());
+        }
+    }
+
+    private static void check(final File data, final TableOptions tableOptions) throws IOException {
+        final Random random = new Random(data.getName().hashCode());
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final DBOptions options = DBOptions.defaults()
+                .withMemTableSize(16 * 1024)
+                .withSyncPolicy(SyncPolicy.none())
+                .withTableOptions(tableOptions);
+
+        try (NewDAO dao = new NewDAO(data, options)) {
+            // Several rounds of overwrites and removals spread the keys over many tables
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < KEYS; i++) {
+                    final int k = random.nextInt(KEYS);
+                    if (random.nextInt(5) == 0) {
+                        dao.remove(key(k));
+                        expected.remove(key(k));
+                    } else {
+                        dao.upsert(key(k), value(k, round));
+                        expected.put(key(k), value(k, round));
+                    }
+                }
+            }
+            checkRanges(dao, expected, random);
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (int i = 0; i < CHECKS; i++) {
+                    final int a = random.nextInt(KEYS + 2) - 1;
+                    final ByteBuffer from = key(a);
+                    final ByteBuffer to = key(a + random.nextInt(KEYS / 10));
+                    assertEquals(records(expected.subMap(from, true, to, false)), list(snapshot.range(from, to)));
+                    assertEquals(records(expected.subMap(from, true, to, false).descendingMap()),
+                            list(snapshot.descendingRange(from, to)));
+                }
+            }
+        }
+
+        // Only tables on disk after restart
+        try (NewDAO dao = new NewDAO(data, options)) {
+            checkRanges(dao, expected, random);
+        }
+    }
+
+    private static void checkRanges(
+            final NewDAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final Random random) throws IOException {
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+        assertEquals(records(expected), list(dao.range(empty, null)));
+        assertEquals(records(expected.descendingMap()), list(dao.descendingRange(empty, null)));
+
+        for (int i = 0; i < CHECKS; i++) {
+            // Bounds both between keys and on existing keys, inside and outside the data
+            final int a = random.nextInt(KEYS + 2) - 1;
+            final int b = a + random.nextInt(KEYS / 10);
+            final ByteBuffer from = key(a);
+            final ByteBuffer to = key(b);
+            assertEquals(records(expected.subMap(from, true, to, false)), list(dao.range(from, to)));
+            assertEquals(records(expected.subMap(from, true, to, false).descendingMap()),
+                    list(dao.descendingRange(from, to)));
+            assertEquals(records(expected.tailMap(from, true).descendingMap()),
+                    list(dao.descendingRange(from, null)));
+        }
+    }
+
+    private static List<Record> records(final Map<ByteBuffer, ByteBuffer> map) {
+        final List<Record> result = new ArrayList<>(map.size());
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+            result.add(Record.of(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    private static List<Record> list(final Iterator<Record> iterator) {
+        final List<Record> result = new ArrayList<>();
+        iterator.forEachRemaining(result::add);
+        return result;
+    }
+}
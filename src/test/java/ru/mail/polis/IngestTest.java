@@ -0,0 +1,155 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks bulk ingest of sorted records into {@link NewDAO}.
+ */
+class IngestTest extends TestBase {
+    private static final int RECORDS = 10_000;
+    private static final DBOptions OPTIONS = DBOptions.defaults().withMemTableSize(1024 * 1024);
+
+    @Test
+    void ingestOverExistingData(@TempDir File data) throws IOException {
+        try (NewDAO dao = open(data, OPTIONS)) {
+            dao.upsert(key(10), value(10, 0));
+            dao.remove(key(20));
+            dao.upsert(key(RECORDS), value(RECORDS, 0));
+
+            dao.ingest(records(0, RECORDS, 1).iterator(), true);
+            assertFalse(tables(data).isEmpty());
+
+            // Ingested records are newer than what was there and older than what comes next
+            dao.upsert(key(30), value(30, 2));
+            check(dao);
+        }
+
+        // Ingested tables are found on restart like any other
+        try (DAO dao = open(data, OPTIONS)) {
+            check(dao);
+        }
+    }
+
+    @Test
+    void unsorted(@TempDir File data) throws IOException {
+        try (NewDAO dao = open(data, OPTIONS)) {
+            final List<Record> records = records(0, RECORDS, 1);
+            records.add(records.get(RECORDS / 2));
+            assertThrows(IllegalArgumentException.class, () -> dao.ingest(records.iterator(), true));
+
+            // Duplicate keys are out of order too
+            final List<Record> duplicates = records(0, 2, 1);
+            duplicates.add(1, duplicates.get(0));
+            assertThrows(IllegalArgumentException.class, () -> dao.ingest(duplicates.iterator(), true));
+
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+        assertTrue(tables(data).isEmpty());
+        final String[] temps = data.list((dir, name) -> name.endsWith(".tmp"));
+        assertNotNull(temps);
+        assertEquals(0, temps.length);
+    }
+
+    @Test
+    void overlap(@TempDir File data) throws IOException {
+        try (NewDAO dao = open(data, OPTIONS)) {
+            dao.ingest(records(0, 100, 1).iterator(), false);
+            dao.remove(key(150));
+
+            // Both an ingested table and a tombstone in the memtable are in the way
+            assertThrows(IllegalArgumentException.class, () -> dao.ingest(records(50, 60, 2).iterator(), false));
+            assertThrows(IllegalArgumentException.class, () -> dao.ingest(records(140, 160, 2).iterator(), false));
+            assertEquals(value(55, 1), dao.get(key(55)));
+
+            dao.ingest(records(200, 300, 2).iterator(), false);
+            dao.ingest(records(50, 60, 3).iterator(), true);
+            assertEquals(value(55, 3), dao.get(key(55)));
+            assertEquals(value(250, 2), dao.get(key(250)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(150)));
+        }
+    }
+
+    @Test
+    void removeDuringIngest(@TempDir File data) throws Exception {
+        // Every write is flushed, so compaction sees the tombstone and may drop it
+        try (NewDAO dao = open(data, DBOptions.defaults().withMemTableSize(1))) {
+            dao.upsert(key(50), value(50, 0));
+            dao.compact();
+
+            // The key is removed and compacted away while its ingested value is still being written
+            final Thread remover = new Thread(() -> {
+                try {
+                    dao.remove(key(50));
+                    dao.compact();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            final Iterator<Record> ingested = records(0, 100, 1).iterator();
+            dao.ingest(new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return ingested.hasNext();
+                }
+
+                @Override
+                public Record next() {
+                    final Record next = ingested.next();
+                    if (next.getKey().equals(key(99))) {
+                        remover.start();
+                        try {
+                            // The compaction has to wait for the ingest, so give it time to try
+                            remover.join(1_000L);
+                        } catch (InterruptedException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                    return next;
+                }
+            }, true);
+            remover.join();
+
+            // The tombstone is newer than the ingested value
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(50)));
+            assertEquals(value(49, 1), dao.get(key(49)));
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(50)));
+        }
+    }
+
+    private static void check(final DAO dao) throws IOException {
+        for (int i = 0; i < RECORDS; i++) {
+            final int session = i == 30 ? 2 : 1;
+            assertEquals(value(i, session), dao.get(key(i)));
+        }
+        assertEquals(value(RECORDS, 0), dao.get(key(RECORDS)));
+
+        final Iterator<Record> iterator = dao.iterator(key(RECORDS / 2));
+        for (int i = RECORDS / 2; i <= RECORDS; i++) {
+            assertEquals(key(i), iterator.next().getKey());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static List<Record> records(final int from, final int to, final int session) {
+        final List<Record> records = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            records.add(Record.of(key(i), value(i, session)));
+        }
+        return records;
+    }
+}
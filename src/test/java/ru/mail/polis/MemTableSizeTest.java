@@ -0,0 +1,102 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+import ru.mail.polis.boriskin.SyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks fixed and adaptive memtable flush thresholds.
+ */
+class MemTableSizeTest extends TestBase {
+    private static final int RECORDS = 4_000;
+    private static final long MIN_SIZE = 64 * 1024;
+
+    @Test
+    void adaptiveThresholdGrowsUnderBurst(@TempDir File data) throws IOException {
+        final File fixed = new File(data, "fixed");
+        final File adaptive = new File(data, "adaptive");
+        assertTrue(fixed.mkdir() && adaptive.mkdir());
+
+        // Compaction is disabled, so every flush leaves its own table
+        final DBOptions options = DBOptions.defaults()
+                .withSyncPolicy(SyncPolicy.none())
+                .withCompactionStrategy(ssTables -> null)
+                .withMaxTableCount(Integer.MAX_VALUE);
+        fill(fixed, options.withMemTableSize(MIN_SIZE));
+        final Map<ByteBuffer, ByteBuffer> expected =
+                fill(adaptive, options.withAdaptiveMemTableSize(MIN_SIZE, 64 * MIN_SIZE));
+
+        // The burst fills memtables fast, so the threshold keeps doubling
+        assertTrue(tables(adaptive).size() * 4 < tables(fixed).size());
+
+        try (DAO dao = DAOFactory.create(adaptive)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void snapshotsKeepThreshold(@TempDir File data) throws IOException {
+        final File plain = new File(data, "plain");
+        final File snapshots = new File(data, "snapshots");
+        assertTrue(plain.mkdir() && snapshots.mkdir());
+
+        final DBOptions options = DBOptions.defaults()
+                .withSyncPolicy(SyncPolicy.none())
+                .withCompactionStrategy(ssTables -> null)
+                .withMaxTableCount(Integer.MAX_VALUE)
+                .withAdaptiveMemTableSize(MIN_SIZE, 64 * MIN_SIZE);
+        fill(plain, options);
+
+        // Each snapshot freezes a tiny memtable in quick succession, which is no burst of writes
+        final int rounds = 20;
+        try (NewDAO dao = new NewDAO(snapshots, options)) {
+            for (int i = 0; i < rounds; i++) {
+                dao.upsert(randomKey(), randomValue());
+                dao.snapshot().close();
+            }
+            // The same burst of writes has to start from the same threshold
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+        }
+
+        assertTrue(tables(plain).size() > 1);
+        assertTrue(tables(snapshots).size() - rounds >= tables(plain).size());
+    }
+
+    @Test
+    void invalidOptions() {
+        final DBOptions options = DBOptions.defaults();
+        assertThrows(IllegalArgumentException.class, () -> options.withMemTableSize(-1));
+        assertThrows(IllegalArgumentException.class, () -> options.withAdaptiveMemTableSize(0, MIN_SIZE));
+        assertThrows(IllegalArgumentException.class, () -> options.withAdaptiveMemTableSize(MIN_SIZE, 1));
+        assertThrows(IllegalArgumentException.class, () -> options.withMaxFlushQueueSize(0));
+        assertThrows(IllegalArgumentException.class, () -> options.withMaxTableCount(0));
+        assertThrows(IllegalArgumentException.class, () -> options.withCompactionThreads(0));
+    }
+
+    private static Map<ByteBuffer, ByteBuffer> fill(final File dir, final DBOptions options) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> records = new HashMap<>();
+        try (DAO dao = new NewDAO(dir, options)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                records.put(key, value);
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,99 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that reads skip SSTables whose key range does not intersect the query,
+ * without even opening them when the manifest knows their key ranges.
+ */
+class RangePruningTest extends TestBase {
+    private static final int BATCHES = 4;
+    private static final int RECORDS = 2_000;
+
+    @Test
+    void disjointTables(@TempDir File data) throws IOException {
+        // Each session writes its own key range, like a time series
+        Set<String> oldest = null;
+        for (int batch = 0; batch < BATCHES; batch++) {
+            try (DAO dao = open(data, DBOptions.defaults())) {
+                for (int i = 0; i < RECORDS; i++) {
+                    dao.upsert(key(batch, i), value(i, batch));
+                }
+                for (int i = 0; i < RECORDS; i += 10) {
+                    dao.remove(key(batch, i));
+                }
+            }
+            if (oldest == null) {
+                oldest = tables(data);
+                assertFalse(oldest.isEmpty());
+            }
+        }
+
+        // Reading the oldest tables would fail now
+        for (final String name : oldest) {
+            Files.delete(new File(data, name).toPath());
+        }
+
+        try (NewDAO dao = open(data, DBOptions.defaults())) {
+            for (int batch = 1; batch < BATCHES; batch++) {
+                for (int i = 0; i < RECORDS; i += 7) {
+                    final ByteBuffer key = key(batch, i);
+                    if (i % 10 == 0) {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(value(i, batch), dao.get(key));
+                    }
+                }
+                // Between the ranges of two tables
+                final ByteBuffer gap = key(batch, RECORDS);
+                assertThrows(NoSuchElementException.class, () -> dao.get(gap));
+            }
+
+            final Iterator<Record> range = dao.range(key(1, RECORDS / 2), key(2, RECORDS / 2));
+            for (int batch = 1; batch < 3; batch++) {
+                final int from = batch == 1 ? RECORDS / 2 : 0;
+                final int to = batch == 1 ? RECORDS : RECORDS / 2;
+                for (int i = from; i < to; i++) {
+                    if (i % 10 != 0) {
+                        assertEquals(key(batch, i), range.next().getKey());
+                    }
+                }
+            }
+            assertFalse(range.hasNext());
+
+            final Iterator<Record> tail = dao.iterator(key(BATCHES - 1, 0));
+            for (int i = 0; i < RECORDS; i++) {
+                if (i % 10 != 0) {
+                    assertEquals(value(i, BATCHES - 1), tail.next().getValue());
+                }
+            }
+            assertFalse(tail.hasNext());
+
+            final Iterator<Record> descending = dao.descendingRange(key(1, 0), key(2, 0));
+            for (int i = RECORDS - 1; i >= 0; i--) {
+                if (i % 10 != 0) {
+                    assertEquals(key(1, i), descending.next().getKey());
+                }
+            }
+            assertFalse(descending.hasNext());
+        }
+    }
+
+    // batches lie in disjoint key ranges with gaps between them
+    private static ByteBuffer key(final int batch, final int i) {
+        return key(batch * 2 * RECORDS + i);
+    }
+}
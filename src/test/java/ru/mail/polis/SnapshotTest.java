@@ -0,0 +1,109 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+import ru.mail.polis.boriskin.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks point-in-time snapshots and iterators that outlive compaction of the tables they read.
+ */
+class SnapshotTest extends TestBase {
+    private static final int RECORDS = 20_000;
+    private static final DBOptions OPTIONS = DBOptions.defaults().withMemTableSize(64 * 1024);
+
+    @Test
+    void snapshotIgnoresLaterChanges(@TempDir File data) throws IOException {
+        try (NewDAO dao = open(data, OPTIONS)) {
+            fill(dao, 1);
+            // The tail stays in the memtable until the snapshot freezes it
+            dao.upsert(key(RECORDS), value(RECORDS, 1));
+
+            // Tables flushed from here on may reach the snapshot as frozen memtables; only these are surely pinned
+            final Set<String> pinned = tables(data);
+            try (Snapshot snapshot = dao.snapshot()) {
+                fill(dao, 2);
+                dao.remove(key(RECORDS));
+                dao.compact();
+
+                // Replaced tables are still there for the snapshot
+                assertTrue(tables(data).containsAll(pinned));
+                assertEquals(value(RECORDS / 2, 2), dao.get(key(RECORDS / 2)));
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(RECORDS)));
+
+                assertEquals(value(RECORDS / 2, 1), snapshot.get(key(RECORDS / 2)));
+                assertEquals(value(RECORDS, 1), snapshot.get(key(RECORDS)));
+                final Iterator<Record> iterator = snapshot.iterator(ByteBuffer.allocate(0));
+                for (int i = 0; i <= RECORDS; i++) {
+                    final Record record = iterator.next();
+                    assertEquals(key(i), record.getKey());
+                    assertEquals(value(i, 1), record.getValue());
+                }
+                assertFalse(iterator.hasNext());
+                assertFalse(snapshot.range(key(10), key(10)).hasNext());
+
+                snapshot.close();
+                assertTrue(intersection(tables(data), pinned).isEmpty());
+                assertThrows(IllegalStateException.class, () -> snapshot.get(key(0)));
+            }
+        }
+
+        // Nothing left behind by the snapshot shows up after restart
+        try (DAO dao = open(data, OPTIONS)) {
+            assertEquals(value(0, 2), dao.get(key(0)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(RECORDS)));
+        }
+    }
+
+    @Test
+    void scanSurvivesCompaction(@TempDir File data) throws IOException {
+        try (NewDAO dao = open(data, OPTIONS)) {
+            fill(dao, 1);
+            dao.compact();
+            final Set<String> before = tables(data);
+
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            for (int i = 0; i < RECORDS / 2; i++) {
+                assertEquals(key(i), iterator.next().getKey());
+            }
+
+            fill(dao, 2);
+            dao.compact();
+            assertTrue(tables(data).containsAll(before));
+
+            // The scan keeps reading the replaced tables
+            for (int i = RECORDS / 2; i < RECORDS; i++) {
+                final Record record = iterator.next();
+                assertEquals(key(i), record.getKey());
+                assertEquals(value(i, 1), record.getValue());
+            }
+            assertFalse(iterator.hasNext());
+
+            // ...and lets them go once it is done
+            assertTrue(intersection(tables(data), before).isEmpty());
+        }
+    }
+
+    private static void fill(final DAO dao, final int session) throws IOException {
+        for (int i = 0; i < RECORDS; i++) {
+            dao.upsert(key(i), value(i, session));
+        }
+    }
+
+    private static Set<String> intersection(final Set<String> left, final Set<String> right) {
+        final Set<String> result = new HashSet<>(left);
+        result.retainAll(right);
+        return result;
+    }
+}
@@ -0,0 +1,136 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that {@link NewDAO} starts from its manifest, falls back to finding tables in the directory without one,
+ * drops a torn last manifest record and removes the table files the manifest does not list.
+ */
+class StartupTest extends TestBase {
+    private static final int RECORDS = 10_000;
+    private static final DBOptions OPTIONS = DBOptions.defaults().withMemTableSize(64 * 1024);
+
+    @Test
+    void withoutManifest(@TempDir File data) throws IOException {
+        try (DAO dao = open(data, OPTIONS)) {
+            fill(dao, 1);
+        }
+        final File manifest = new File(data, "MANIFEST");
+        assertTrue(manifest.isFile());
+
+        // As if the data were written before the manifest appeared
+        Files.delete(manifest.toPath());
+        try (DAO dao = open(data, OPTIONS)) {
+            check(dao, 1);
+        }
+        assertTrue(manifest.isFile());
+
+        try (DAO dao = open(data, OPTIONS)) {
+            check(dao, 1);
+            fill(dao, 2);
+        }
+        try (DAO dao = open(data, OPTIONS)) {
+            check(dao, 2);
+        }
+    }
+
+    @Test
+    void tornManifestTail(@TempDir File data) throws IOException {
+        try (DAO dao = open(data, OPTIONS)) {
+            fill(dao, 1);
+        }
+
+        // A change cut short by a crash: a record header promising more bytes than there are
+        final File manifest = new File(data, "MANIFEST");
+        Files.write(manifest.toPath(), new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5, 6}, StandardOpenOption.APPEND);
+        try (DAO dao = open(data, OPTIONS)) {
+            check(dao, 1);
+            // Later changes go after the last whole one
+            fill(dao, 2);
+        }
+        try (DAO dao = open(data, OPTIONS)) {
+            check(dao, 2);
+        }
+    }
+
+    @Test
+    void obsoleteTablesIgnored(@TempDir File data) throws IOException, InterruptedException {
+        try (DAO dao = open(data, OPTIONS)) {
+            fill(dao, 1);
+            dao.upsert(key(RECORDS), value(RECORDS, 1));
+        }
+        final Map<String, byte[]> replaced = new HashMap<>();
+        for (final File table : tableFiles(data)) {
+            replaced.put(table.getName(), Files.readAllBytes(table.toPath()));
+        }
+
+        try (NewDAO dao = open(data, OPTIONS)) {
+            fill(dao, 2);
+            dao.remove(key(RECORDS));
+            dao.compact();
+        }
+
+        // Tables replaced by compaction come back, as if the process died before deleting them
+        for (final Map.Entry<String, byte[]> table : replaced.entrySet()) {
+            Files.write(new File(data, table.getKey()).toPath(), table.getValue());
+        }
+
+        try (DAO dao = open(data, OPTIONS)) {
+            check(dao, 2);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(RECORDS)));
+
+            // ...and are removed in the background
+            for (int i = 0; i < 100 && containsAny(data, replaced); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(containsAny(data, replaced));
+        }
+    }
+
+    private static void fill(final DAO dao, final int session) throws IOException {
+        for (int i = 0; i < RECORDS; i++) {
+            dao.upsert(key(i), value(i, session));
+        }
+    }
+
+    private static void check(final DAO dao, final int session) throws IOException {
+        for (int i = 0; i < RECORDS; i += 7) {
+            assertEquals(value(i, session), dao.get(key(i)));
+        }
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals(key(i), iterator.next().getKey());
+        }
+    }
+
+    private static File[] tableFiles(final File dir) {
+        final File[] tables = dir.listFiles((d, name) -> name.endsWith(".db"));
+        assertNotNull(tables);
+        assertTrue(tables.length > 1);
+        return tables;
+    }
+
+    private static boolean containsAny(final File dir, final Map<String, byte[]> tables) {
+        for (final String name : tables.keySet()) {
+            if (new File(dir, name).exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,201 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+import ru.mail.polis.boriskin.SyncPolicy;
+import ru.mail.polis.boriskin.TableOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks SSTables split into small and compressed blocks and mapped into memory in segments.
+ */
+class TableFormatTest extends TestBase {
+    private static final int RECORDS = 5_000;
+
+    @Test
+    void compressedBlocks(@TempDir File data) throws IOException {
+        final File plain = new File(data, "plain");
+        final File compressed = new File(data, "compressed");
+        assertTrue(plain.mkdir() && compressed.mkdir());
+
+        fill(plain, TableOptions.defaults().withBlockSize(256));
+        fill(compressed, TableOptions.defaults().withBlockSize(256).withCompression(true));
+
+        for (final File dir : new File[]{plain, compressed}) {
+            try (DAO dao = DAOFactory.create(dir)) {
+                for (int i = 0; i < RECORDS; i++) {
+                    if (i % 10 == 0) {
+                        final ByteBuffer key = key(i);
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(value(i), dao.get(key(i)));
+                    }
+                }
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(RECORDS)));
+
+                // Range scans start in the middle of a block and cross block boundaries
+                final Iterator<Record> iterator = dao.iterator(key(RECORDS / 2));
+                for (int i = RECORDS / 2; i < RECORDS; i++) {
+                    if (i % 10 != 0) {
+                        final Record record = iterator.next();
+                        assertEquals(key(i), record.getKey());
+                        assertEquals(value(i), record.getValue());
+                    }
+                }
+                assertFalse(iterator.hasNext());
+            }
+        }
+
+        // Values are highly repetitive
+        assertTrue(Files.directorySize(compressed) < Files.directorySize(plain) / 2);
+    }
+
+    @Test
+    void sharedPrefixes(@TempDir File data) throws IOException {
+        final File full = new File(data, "full");
+        final File prefixed = new File(data, "prefixed");
+        assertTrue(full.mkdir() && prefixed.mkdir());
+
+        // Every key is stored in full vs. every 16th key
+        fill(full, TableOptions.defaults().withRestartInterval(1));
+        fill(prefixed, TableOptions.defaults());
+
+        try (DAO dao = DAOFactory.create(prefixed)) {
+            for (int i = 1; i < RECORDS; i += 10) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+            final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+            for (int i = 0; i < RECORDS; i++) {
+                if (i % 10 != 0) {
+                    assertEquals(key(i), iterator.next().getKey());
+                }
+            }
+            assertFalse(iterator.hasNext());
+        }
+
+        assertTrue(Files.directorySize(prefixed) < Files.directorySize(full));
+    }
+
+    @Test
+    void mappedInSegments(@TempDir File data) throws IOException {
+        // A few blocks per segment, so reads keep crossing segment boundaries
+        final TableOptions options = TableOptions.defaults().withBlockSize(256).withMappedSegmentSize(1024);
+        fill(data, options);
+
+        try (NewDAO dao = open(data, options)) {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < RECORDS; i++) {
+                    if (i % 10 == 0) {
+                        final ByteBuffer key = key(i);
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(value(i), dao.get(key(i)));
+                    }
+                }
+
+                final Iterator<Record> iterator = dao.descendingRange(ByteBuffer.allocate(0), null);
+                for (int i = RECORDS - 1; i >= 0; i--) {
+                    if (i % 10 != 0) {
+                        assertEquals(key(i), iterator.next().getKey());
+                    }
+                }
+                assertFalse(iterator.hasNext());
+
+                // The same once everything is in a single table
+                dao.compact();
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> options.withMappedSegmentSize(0));
+        assertThrows(IllegalArgumentException.class, () -> options.withMappedSegmentSize(1L << 31));
+    }
+
+    @Test
+    void longKeys(@TempDir File data) throws IOException {
+        // A block per key; the index keeps short separators like "key00000042" between them
+        final TableOptions options = TableOptions.defaults().withBlockSize(256);
+        final int records = 500;
+        try (DAO dao = open(data, options)) {
+            for (int i = 0; i < records; i++) {
+                dao.upsert(longKey(i), value(i));
+            }
+        }
+
+        try (NewDAO dao = open(data, options)) {
+            for (int i = 1; i < records; i++) {
+                assertEquals(value(i), dao.get(longKey(i)));
+                // Exactly the separator in front of the block
+                final ByteBuffer separator = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(separator));
+                assertEquals(longKey(i), dao.iterator(separator).next().getKey());
+                assertEquals(longKey(i - 1), dao.descendingRange(ByteBuffer.allocate(0), separator).next().getKey());
+            }
+        }
+    }
+
+    @Test
+    void blockCache(@TempDir File data) throws IOException {
+        final TableOptions options = TableOptions.defaults().withBlockSize(256).withCompression(true);
+        fill(data, options);
+
+        // Small cache: hot blocks stay, the rest is evicted
+        try (NewDAO dao = open(data, options.withBlockCacheSize(4 * 1024))) {
+            for (int round = 0; round < 10; round++) {
+                assertEquals(value(1), dao.get(key(1)));
+            }
+            assertTrue(dao.getBlockCache().getHits() >= 9);
+
+            for (int i = 1; i < RECORDS; i += 10) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+            assertTrue(dao.getBlockCache().getEvictions() > 0);
+            assertTrue(dao.getBlockCache().getSize() <= 4 * 1024);
+        }
+
+        // No cache at all
+        try (NewDAO dao = open(data, options.withBlockCacheSize(0))) {
+            for (int round = 0; round < 10; round++) {
+                assertEquals(value(1), dao.get(key(1)));
+            }
+            assertEquals(0, dao.getBlockCache().getHits());
+        }
+    }
+
+    private static NewDAO open(final File dir, final TableOptions options) throws IOException {
+        return new NewDAO(dir, DBOptions.defaults()
+                .withMemTableSize(Long.MAX_VALUE)
+                .withMaxFlushQueueSize(1)
+                .withSyncPolicy(SyncPolicy.none())
+                .withTableOptions(options));
+    }
+
+    private static void fill(final File dir, final TableOptions options) throws IOException {
+        try (DAO dao = open(dir, options)) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            for (int i = 0; i < RECORDS; i += 10) {
+                dao.remove(key(i));
+            }
+        }
+    }
+
+    private static ByteBuffer longKey(final int i) {
+        return join(key(i), ByteBuffer.wrap("x".repeat(512).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // highly repetitive, so that blocks compress well
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i % 7).repeat(20).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -17,10 +17,21 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.boriskin.DBOptions;
+import ru.mail.polis.boriskin.NewDAO;
+import ru.mail.polis.boriskin.SyncPolicy;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
 /**
  * Contains utility methods for unit tests.
  *
@@ -58,4 +69,45 @@ abstract class TestBase {
         result.rewind();
         return result;
     }
+
+    /**
+     * Keys that sort in the order of their numbers.
+     */
+    @NotNull
+    static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Value of the i-th key written in the given session.
+     */
+    @NotNull
+    static ByteBuffer value(
+            final int i,
+            final int session) {
+        return ByteBuffer.wrap(("value" + i + "-" + session).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Opens a storage without fsyncs that compacts tables only on request.
+     */
+    @NotNull
+    static NewDAO open(
+            @NotNull final File data,
+            @NotNull final DBOptions options) throws IOException {
+        return new NewDAO(data, options
+                .withSyncPolicy(SyncPolicy.none())
+                .withCompactionStrategy(ssTables -> null)
+                .withMaxTableCount(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Names of the SSTables in the directory.
+     */
+    @NotNull
+    static Set<String> tables(@NotNull final File dir) {
+        final String[] tables = dir.list((d, name) -> name.endsWith(".db"));
+        assertNotNull(tables);
+        return new HashSet<>(Arrays.asList(tables));
+    }
 }
@@ -0,0 +1,120 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.boriskin.DBOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that tables full of tombstones are compacted away on their own
+ * and that tombstones survive compaction until their grace period is over.
+ */
+class TombstoneGcTest extends TestBase {
+    private static final int RECORDS = 2_000;
+
+    @Test
+    void purgeDeadTable(@TempDir File data) throws IOException {
+        try (DAO dao = open(data, DBOptions.defaults())) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+        }
+        final Set<String> live = tables(data);
+        assertFalse(live.isEmpty());
+
+        // Tombstones of keys that are nowhere else: nothing to hide, so the whole table goes away
+        try (DAO dao = open(data, DBOptions.defaults())) {
+            for (int i = RECORDS; i < 2 * RECORDS; i++) {
+                dao.remove(key(i));
+            }
+        }
+        assertEquals(live, tables(data));
+
+        try (DAO dao = open(data, DBOptions.defaults())) {
+            for (int i = 0; i < 2 * RECORDS; i += 7) {
+                final ByteBuffer key = key(i);
+                if (i < RECORDS) {
+                    assertEquals(value(i, 1), dao.get(key));
+                } else {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void keepShadowingTombstones(@TempDir File data) throws IOException {
+        try (DAO dao = open(data, DBOptions.defaults())) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+        }
+        try (DAO dao = open(data, DBOptions.defaults())) {
+            for (int i = 0; i < RECORDS; i += 2) {
+                dao.remove(key(i));
+            }
+        }
+
+        final Set<String> written = tables(data);
+
+        // Dropping these tombstones would bring the old values back, so their table is not even rewritten
+        for (int session = 0; session < 2; session++) {
+            try (DAO dao = open(data, DBOptions.defaults())) {
+                checkHalf(dao);
+            }
+            assertEquals(written, tables(data));
+        }
+    }
+
+    @Test
+    void gracePeriod(@TempDir File data) throws IOException {
+        final DBOptions grace = DBOptions.defaults().withTombstoneGracePeriod(TimeUnit.HOURS.toMillis(1));
+        try (DAO dao = open(data, grace)) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+        }
+        try (DAO dao = open(data, grace)) {
+            for (int i = 0; i < RECORDS; i += 2) {
+                dao.remove(key(i));
+            }
+            dao.compact();
+            checkHalf(dao);
+        }
+
+        // Fresh tombstones are kept even by a full compaction
+        try (DAO dao = open(data, grace)) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.remove(key(i));
+            }
+            dao.compact();
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+        assertFalse(tables(data).isEmpty());
+
+        // Without a grace period they are not
+        try (DAO dao = open(data, DBOptions.defaults())) {
+            dao.compact();
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+        assertTrue(tables(data).isEmpty());
+    }
+
+    private static void checkHalf(final DAO dao) throws IOException {
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        for (int i = 1; i < RECORDS; i += 2) {
+            assertEquals(key(i), iterator.next().getKey());
+        }
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+    }
+}
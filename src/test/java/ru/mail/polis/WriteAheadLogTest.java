@@ -0,0 +1,75 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that acknowledged writes survive a {@link DAO} that was never closed.
+ */
+class WriteAheadLogTest extends TestBase {
+    @Test
+    void recoverWithoutClose(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        final ByteBuffer removed = randomKey();
+
+        // "Crash": the DAO is abandoned without close()
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(removed, randomValue());
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            crashed.upsert(key, value);
+            expected.put(key, value);
+        }
+        crashed.remove(removed);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        // Recovered data is flushed on close and the log is gone
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+        final String[] logs = data.list((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(0, logs.length);
+    }
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+
+        // Half-written record at the end of the log
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (FileChannel channel = FileChannel.open(logs[0].toPath(), StandardOpenOption.APPEND)) {
+            channel.write(randomBuffer(7));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks atomic {@link WriteBatch}es.
+ */
+class WriteBatchTest extends TestBase {
+    private static final int BATCHES = 2_000;
+
+    @Test
+    void applyAndRecover(@TempDir File data) throws IOException {
+        final ByteBuffer updated = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer overwritten = randomKey();
+        final ByteBuffer missing = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer last = randomValue();
+
+        // "Crash": the DAO is abandoned without close()
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(updated, randomValue());
+        crashed.upsert(removed, randomValue());
+        crashed.write(new WriteBatch()
+                .upsert(updated, value)
+                .remove(removed)
+                .upsert(overwritten, randomValue())
+                .upsert(overwritten, last)
+                .remove(missing));
+        check(crashed, updated, value, overwritten, last, removed, missing);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, updated, value, overwritten, last, removed, missing);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, updated, value, overwritten, last, removed, missing);
+        }
+    }
+
+    @Test
+    void tornBatch(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer first = randomKey();
+        final ByteBuffer second = randomKey();
+
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+        crashed.write(new WriteBatch()
+                .upsert(first, randomValue())
+                .upsert(second, randomValue()));
+
+        // The batch record lost its tail
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (FileChannel channel = FileChannel.open(logs[0].toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(first));
+            assertThrows(NoSuchElementException.class, () -> dao.get(second));
+        }
+    }
+
+    @Test
+    void readersSeeWholeBatch(@TempDir File data) throws Exception {
+        final ByteBuffer first = randomKey();
+        final ByteBuffer second = randomKey();
+        final AtomicBoolean done = new AtomicBoolean();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.write(new WriteBatch().upsert(first, number(0)).upsert(second, number(0)));
+
+            // Once the first key of a batch is visible, so is the second one
+            final Future<?> reader = executor.submit(() -> {
+                while (!done.get()) {
+                    final int seen = dao.get(first).getInt();
+                    assertTrue(dao.get(second).getInt() >= seen);
+                }
+                return null;
+            });
+            final Future<?> writer = executor.submit(() -> {
+                try {
+                    for (int i = 1; i <= BATCHES; i++) {
+                        dao.write(new WriteBatch().upsert(first, number(i)).upsert(second, number(i)));
+                    }
+                } finally {
+                    done.set(true);
+                }
+                return null;
+            });
+
+            writer.get();
+            reader.get();
+            assertEquals(number(BATCHES), dao.get(first));
+            assertEquals(number(BATCHES), dao.get(second));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final ByteBuffer updated,
+            final ByteBuffer value,
+            final ByteBuffer overwritten,
+            final ByteBuffer last,
+            final ByteBuffer removed,
+            final ByteBuffer missing) throws IOException {
+        assertEquals(value, dao.get(updated));
+        assertEquals(last, dao.get(overwritten));
+        assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+
+        int count = 0;
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        while (iterator.hasNext()) {
+            final ByteBuffer key = iterator.next().getKey();
+            assertTrue(key.equals(updated) || key.equals(overwritten));
+            count++;
+        }
+        assertEquals(2, count);
+    }
+
+    private static ByteBuffer number(final int i) {
+        final ByteBuffer result = ByteBuffer.allocate(Integer.BYTES);
+        result.putInt(0, i);
+        return result;
+    }
+}
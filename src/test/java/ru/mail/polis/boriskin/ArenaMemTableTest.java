@@ -0,0 +1,93 @@
+package ru.mail.polis.boriskin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that an off-heap memtable hands its slabs over to the next one once released,
+ * and that nothing given out to readers points into them.
+ */
+class ArenaMemTableTest {
+    // a few slabs worth of keys and values
+    private static final int RECORDS = 20_000;
+
+    @Test
+    void releasedSlabsAreReused() throws IOException {
+        final SlabPool pool = new SlabPool(16L << 20);
+        final ArenaMemTable first = new ArenaMemTable(pool);
+        fill(first, "first");
+        assertEquals(0, pool.getSize());
+
+        // A reader keeps the table alive after the table set lets it go
+        assertTrue(first.tryRetain());
+        first.release();
+        assertEquals(0, pool.getSize());
+        first.release();
+        final long free = pool.getSize();
+        assertTrue(free >= 2 * Arena.SLAB_SIZE);
+        assertFalse(first.tryRetain());
+
+        // The next table writes over the old bytes instead of allocating new slabs
+        final ArenaMemTable second = new ArenaMemTable(pool);
+        fill(second, "second");
+        assertTrue(pool.getSize() < free);
+        final Cursor cursor = second.cursor(ByteBuffer.allocate(0));
+        for (int i = 0; i < RECORDS; i++) {
+            assertTrue(cursor.isValid());
+            assertEquals(key(i), cursor.keyView());
+            assertEquals(value("second", i), cursor.valueView());
+            cursor.next();
+        }
+        assertFalse(cursor.isValid());
+    }
+
+    @Test
+    void valuesOutliveTable() throws IOException {
+        final SlabPool pool = new SlabPool(16L << 20);
+        final ArenaMemTable table = new ArenaMemTable(pool);
+        fill(table, "first");
+        final ByteBuffer found = table.get(key(42)).getData();
+        final ByteBuffer iterated = table.cursor(key(7)).value();
+
+        table.release();
+        fill(new ArenaMemTable(pool), "second");
+
+        assertEquals(value("first", 42), found);
+        assertEquals(value("first", 7), iterated);
+    }
+
+    @Test
+    void directMemoryLimit(@TempDir File data) throws IOException {
+        final DBOptions options = DBOptions.defaults().withMemTableSize(Arena.maxDirectMemory());
+        assertThrows(IllegalArgumentException.class, () -> new NewDAO(data,
+                options.withTableOptions(TableOptions.defaults().withOffHeapMemTable(true))));
+
+        // The same threshold is fine on heap
+        new NewDAO(data, options).close();
+    }
+
+    private static void fill(final MutableTable table, final String prefix) throws IOException {
+        for (int i = 0; i < RECORDS; i++) {
+            table.upsert(key(i), value(prefix, i));
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return bytes(String.format("key%06d", i));
+    }
+
+    private static ByteBuffer value(final String prefix, final int i) {
+        return bytes((prefix + i).repeat(10));
+    }
+
+    private static ByteBuffer bytes(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
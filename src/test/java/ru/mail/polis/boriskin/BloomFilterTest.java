@@ -0,0 +1,65 @@
+package ru.mail.polis.boriskin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.DAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that point lookups of absent keys skip a table through its Bloom filter without reading blocks.
+ */
+class BloomFilterTest {
+    private static final int RECORDS = 5_000;
+
+    @Test
+    void absentKeysSkipTable(@TempDir File data) throws IOException {
+        // Even keys only, so every odd key lies inside the key range of the table
+        try (DAO dao = new NewDAO(data, DBOptions.defaults())) {
+            for (int i = 0; i < RECORDS; i++) {
+                dao.upsert(key(2 * i), value(2 * i));
+            }
+        }
+        final File file = new File(data, "SortedStringTABLE0.db");
+        assertTrue(file.exists());
+
+        // Reopened from disk: the filter comes from the file
+        final BlockCache cache = new BlockCache(Long.MAX_VALUE);
+        final SortedStringTable table = new SortedStringTable(file, 0, cache,
+                TableOptions.defaults().getMappedSegmentSize());
+        for (int i = 0; i < RECORDS; i++) {
+            final Value found = table.get(key(2 * i));
+            assertNotNull(found);
+            assertEquals(value(2 * i), found.getData());
+        }
+
+        int passed = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            final long reads = reads(cache);
+            assertNull(table.get(key(2 * i + 1)));
+            // A false positive: the filter let the key through, and the block says it is not there
+            if (reads(cache) != reads) {
+                passed++;
+            }
+        }
+        assertTrue(passed > 0);
+        assertTrue(passed < RECORDS / 20);
+    }
+
+    private static long reads(final BlockCache cache) {
+        return cache.getHits() + cache.getMisses();
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
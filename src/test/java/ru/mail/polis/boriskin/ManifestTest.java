@@ -0,0 +1,196 @@
+package ru.mail.polis.boriskin;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.DAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that a failed manifest write does not hide the edits logged after it.
+ */
+class ManifestTest {
+
+    @Test
+    void failedWrite(@TempDir File root) throws IOException {
+        logAfterFailure(root, false);
+    }
+
+    @Test
+    void failedWriteAndTruncate(@TempDir File root) throws IOException {
+        logAfterFailure(root, true);
+    }
+
+    private static void logAfterFailure(final File root, final boolean failTruncate) throws IOException {
+        final File data = new File(root, "data");
+        final File other = new File(root, "other");
+        assertTrue(data.mkdir() && other.mkdir());
+        try (DAO dao = new NewDAO(data, DBOptions.defaults())) {
+            dao.upsert(bytes("first"), bytes("1"));
+        }
+        try (DAO dao = new NewDAO(other, DBOptions.defaults())) {
+            dao.upsert(bytes("second"), bytes("2"));
+        }
+
+        // A table flushed elsewhere is added to the store by hand, first with a torn write
+        final FaultyChannel[] faulty = new FaultyChannel[1];
+        final Manifest manifest = Manifest.read(data, channel -> {
+            faulty[0] = new FaultyChannel(channel);
+            return faulty[0];
+        });
+        assertNotNull(manifest);
+        final int gen = manifest.getNextGeneration();
+        final File dest = new File(data, "SortedStringTABLE" + gen + ".db");
+        Files.copy(new File(other, "SortedStringTABLE0.db").toPath(), dest.toPath());
+        final SortedStringTable table = new SortedStringTable(dest, gen, new BlockCache(0L),
+                TableOptions.defaults().getMappedSegmentSize());
+
+        faulty[0].failWrite = true;
+        faulty[0].failTruncate = failTruncate;
+        assertThrows(IOException.class,
+                () -> manifest.logEdit(gen + 1, Collections.singletonMap(gen, table), Collections.emptyList()));
+        manifest.logEdit(gen + 1, Collections.singletonMap(gen, table), Collections.emptyList());
+        manifest.close();
+
+        // The edit logged after the failure survives the restart together with its table
+        try (DAO dao = new NewDAO(data, DBOptions.defaults())) {
+            assertEquals(bytes("1"), dao.get(bytes("first")));
+            assertEquals(bytes("2"), dao.get(bytes("second")));
+        }
+        assertTrue(dest.exists());
+    }
+
+    private static ByteBuffer bytes(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes half of the next record and fails, and can fail to truncate the torn tail.
+     */
+    private static final class FaultyChannel extends FileChannel {
+        private final FileChannel delegate;
+        boolean failWrite;
+        boolean failTruncate;
+
+        FaultyChannel(@NotNull final FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (!failWrite) {
+                return delegate.write(src);
+            }
+            failWrite = false;
+            final ByteBuffer half = src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            src.position(src.position() + delegate.write(half));
+            throw new IOException("Injected write failure");
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public FileChannel truncate(final long size) throws IOException {
+            if (failTruncate) {
+                failTruncate = false;
+                throw new IOException("Injected truncate failure");
+            }
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(final long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public void force(final boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(final long position, final long count, final WritableByteChannel target)
+                throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(final ReadableByteChannel src, final long position, final long count)
+                throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst, final long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(final ByteBuffer src, final long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
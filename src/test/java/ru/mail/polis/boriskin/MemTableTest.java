@@ -0,0 +1,49 @@
+package ru.mail.polis.boriskin;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the memtable size counts the heap overhead of every entry, not only its bytes.
+ */
+class MemTableTest {
+
+    @Test
+    void entryOverhead() throws IOException {
+        final MemTable memTable = new MemTable();
+        memTable.upsert(bytes("key"), bytes("value"));
+        assertEquals(MemTable.ENTRY_OVERHEAD + 3 + 5, memTable.getSize());
+
+        // A tombstone for a new key costs the entry and its key
+        memTable.remove(bytes("other"));
+        assertEquals(2 * MemTable.ENTRY_OVERHEAD + 3 + 5 + 5, memTable.getSize());
+    }
+
+    @Test
+    void replaceKeepsOverhead() throws IOException {
+        final MemTable memTable = new MemTable();
+        memTable.upsert(bytes("key"), bytes("value"));
+
+        // Replacing a value changes only the value bytes
+        memTable.upsert(bytes("key"), bytes("longer value"));
+        assertEquals(MemTable.ENTRY_OVERHEAD + 3 + 12, memTable.getSize());
+        memTable.remove(bytes("key"));
+        assertEquals(MemTable.ENTRY_OVERHEAD + 3, memTable.getSize());
+        memTable.upsert(bytes("key"), bytes("v"));
+        assertEquals(MemTable.ENTRY_OVERHEAD + 3 + 1, memTable.getSize());
+
+        // An older version of the key changes nothing
+        memTable.put(bytes("key"), new Value(0L, bytes("stale value")));
+        assertEquals(MemTable.ENTRY_OVERHEAD + 3 + 1, memTable.getSize());
+        assertEquals(bytes("v"), memTable.get(bytes("key")).getData());
+    }
+
+    private static ByteBuffer bytes(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}